@@ -0,0 +1,191 @@
+package dk.statsbiblioteket.medieplatform.bitrepository.purger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.statsbiblioteket.medieplatform.bitrepository.purger.DeleteJob.JobStatus;
+
+/**
+ * Audit log for the outcome of the individual delete jobs.
+ * Records are queued by the calling thread and written to the audit file in batches by a background writer thread,
+ * so the event handling threads are never blocked by file I/O.
+ * The number of queued records is bounded, so a stalled disk does not fill the heap. Records which cannot be queued,
+ * either because the queue is full or because the log is closed, are dropped and counted.
+ *
+ * Each record is written as a single line on the form
+ * <timestamp>\t<STATUS>\t<fileID>\t<checksum>[\t<failure type>]
+ * where timestamp is milliseconds since epoch, and the failure type is only given for failed jobs.
+ */
+public class AuditLog {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /** The maximum number of records written in a single batch */
+    private static final int MAX_BATCH_SIZE = 4096;
+    /** The maximum number of records waiting to be written */
+    private static final int MAX_QUEUED_RECORDS = 100000;
+    /** Marker record used to tell the writer thread that no more records will arrive */
+    private static final Object END_OF_LOG = new Object();
+
+    private final BlockingQueue<Object> records;
+    private final long fsyncIntervalMillis;
+    private final FileOutputStream outputStream;
+    private final BufferedWriter writer;
+    private final Thread writerThread;
+    private long lastSync;
+    private boolean closed = false;
+    private int droppedRecords = 0;
+
+    /**
+     * Create an audit log which discards all records.
+     */
+    AuditLog() {
+        records = null;
+        fsyncIntervalMillis = 0;
+        outputStream = null;
+        writer = null;
+        writerThread = null;
+    }
+
+    /**
+     * Create the audit log and start the background writer. Records are appended to the file.
+     * @param auditFile The file to write the audit records to
+     * @param fsyncIntervalSeconds The minimum number of seconds between forcing written records to disk.
+     * A value of 0 or less disables the periodic syncing, so records are only forced to disk when the log is closed.
+     * @throws IOException if the audit file cannot be opened for writing
+     */
+    AuditLog(File auditFile, int fsyncIntervalSeconds) throws IOException {
+        records = new LinkedBlockingQueue<>(MAX_QUEUED_RECORDS);
+        fsyncIntervalMillis = TimeUnit.SECONDS.toMillis(fsyncIntervalSeconds);
+        outputStream = new FileOutputStream(auditFile, true);
+        writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), 64 * 1024);
+        lastSync = System.currentTimeMillis();
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "purger-audit-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Record the outcome of a job. The record is only queued, the actual write happens asynchronously.
+     * The record is dropped if the log is closed or too many records are waiting to be written.
+     * @param job The job to record
+     * @param status The status to record for the job
+     */
+    synchronized void record(DeleteJob job, JobStatus status) {
+        if(records == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(System.currentTimeMillis()).append("\t").append(status).append("\t")
+            .append(job.getFileID()).append("\t").append(job.getChecksum());
+        if(job.getFailureType() != null) {
+            sb.append("\t").append(job.getFailureType());
+        }
+        if(closed || !records.offer(sb.toString())) {
+            if(droppedRecords++ == 0) {
+                log.warn("Audit log {}, dropping record '{}'", closed ? "is closed" : "queue is full", sb);
+            }
+        }
+    }
+
+    /**
+     * Close the audit log. Waits for all queued records to be written and synced to disk before returning.
+     */
+    void close() {
+        synchronized(this) {
+            if(records == null || closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            while(writerThread.isAlive() && !records.offer(END_OF_LOG, 1, TimeUnit.SECONDS)) {
+                log.debug("Waiting for the audit log queue to drain");
+            }
+            writerThread.join();
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for audit log to be written", e);
+        }
+        if(getDroppedRecords() > 0) {
+            log.warn("{} records were dropped from the audit log", getDroppedRecords());
+        }
+    }
+
+    /**
+     * Get the number of records which were dropped instead of written to the audit log
+     */
+    synchronized int getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    /**
+     * The background writer loop. Waits for records, and writes everything available in a single batch.
+     */
+    private void writeRecords() {
+        List<Object> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        boolean done = false;
+        try {
+            while(!done) {
+                batch.add(records.take());
+                records.drainTo(batch, MAX_BATCH_SIZE - 1);
+                for(Object record : batch) {
+                    if(record == END_OF_LOG) {
+                        done = true;
+                    } else {
+                        writer.write((String) record);
+                        writer.newLine();
+                    }
+                }
+                batch.clear();
+                writer.flush();
+                if(done || fsyncDue()) {
+                    sync();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Audit log writer was interrupted, remaining records are lost", e);
+        } catch (IOException e) {
+            log.error("Failed to write to audit log, remaining records are lost", e);
+        } finally {
+            synchronized(this) {
+                closed = true;
+                for(Object record : records) {
+                    if(record != END_OF_LOG) {
+                        droppedRecords++;
+                    }
+                }
+                records.clear();
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.warn("Failed to close audit log", e);
+            }
+        }
+    }
+
+    private boolean fsyncDue() {
+        return fsyncIntervalMillis > 0 && System.currentTimeMillis() - lastSync >= fsyncIntervalMillis;
+    }
+
+    private void sync() throws IOException {
+        outputStream.getFD().sync();
+        lastSync = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,205 @@
+package dk.statsbiblioteket.medieplatform.bitrepository.purger;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker guarding the dispatch of deletes to the pillar.
+ * The outcome of the deletes are tracked in a sliding window of the most recent outcomes. The breaker trips (opens)
+ * when either the number of consecutive failures or the failure rate in the window reaches its threshold.
+ *
+ * While open, no deletes are dispatched. When the probe interval has passed a single probe delete is let through
+ * (half open). If the probe succeeds the breaker closes and dispatch resumes, if it fails the breaker opens again.
+ * If the breaker has been open for longer than the maximum open time, the purge should be aborted.
+ *
+ * Only the outcome of the probe delete itself decides the state in the half open state. Outcomes of deletes
+ * dispatched before the breaker tripped are just added to the window.
+ */
+public class CircuitBreaker {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Enum to indicate the state of the circuit breaker
+     */
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN;
+    }
+
+    private final boolean[] window;
+    private final int failureRateThreshold;
+    private final int consecutiveFailureThreshold;
+    private final long probeIntervalMillis;
+    private final long maxOpenTimeMillis;
+
+    private State state = State.CLOSED;
+    private int windowPosition = 0;
+    private int windowCount = 0;
+    private int windowFailures = 0;
+    private int consecutiveFailures = 0;
+    private long openedAt;
+    private long lastProbeAt;
+    private String probeFileID = null;
+    private boolean cancelled = false;
+
+    /**
+     * Create a circuit breaker which never trips.
+     */
+    CircuitBreaker() {
+        this(1, 0, 0, 0, 0);
+    }
+
+    /**
+     * Create the circuit breaker
+     * @param windowSize The number of most recent outcomes to calculate the failure rate from
+     * @param failureRateThreshold The failure rate in percent of a full window which trips the breaker.
+     * 0 disables tripping on failure rate.
+     * @param consecutiveFailureThreshold The number of consecutive failures which trips the breaker.
+     * 0 disables tripping on consecutive failures.
+     * @param probeIntervalSeconds The number of seconds between probe deletes while the breaker is open
+     * @param maxOpenTimeSeconds The maximum number of seconds the breaker may stay open before the purge is aborted
+     */
+    CircuitBreaker(int windowSize, int failureRateThreshold, int consecutiveFailureThreshold,
+            int probeIntervalSeconds, int maxOpenTimeSeconds) {
+        if(windowSize < 1) {
+            throw new IllegalArgumentException("The window size must be at least 1, was " + windowSize);
+        }
+        this.window = new boolean[windowSize];
+        this.failureRateThreshold = failureRateThreshold;
+        this.consecutiveFailureThreshold = consecutiveFailureThreshold;
+        this.probeIntervalMillis = TimeUnit.SECONDS.toMillis(probeIntervalSeconds);
+        this.maxOpenTimeMillis = TimeUnit.SECONDS.toMillis(maxOpenTimeSeconds);
+    }
+
+    /**
+     * Wait until a delete may be dispatched.
+     * Returns immediately when the breaker is closed.
+     * When open, blocks until a probe may be sent, the breaker closes or the breaker is cancelled.
+     * @param fileID The ID of the file to delete, which will be used as probe if the breaker is open
+     * @return true if the delete may be dispatched, false if the breaker has been open for longer than the maximum
+     * open time and the purge should be aborted, or if the breaker has been cancelled.
+     */
+    synchronized boolean awaitPermission(String fileID) {
+        try {
+            while(true) {
+                long now = System.currentTimeMillis();
+                if(cancelled) {
+                    return false;
+                }
+                if(state == State.CLOSED) {
+                    return true;
+                }
+                if(now - openedAt >= maxOpenTimeMillis) {
+                    log.error("Circuit breaker has been open for more than {} seconds, giving up",
+                            TimeUnit.MILLISECONDS.toSeconds(maxOpenTimeMillis));
+                    return false;
+                }
+                if(state == State.OPEN && now - lastProbeAt >= probeIntervalMillis) {
+                    state = State.HALF_OPEN;
+                    probeFileID = fileID;
+                    lastProbeAt = now;
+                    log.info("Circuit breaker half open, sending probe delete of '{}'", fileID);
+                    return true;
+                }
+                long waitTime = Math.min(openedAt + maxOpenTimeMillis - now,
+                        state == State.OPEN ? lastProbeAt + probeIntervalMillis - now : maxOpenTimeMillis);
+                wait(Math.max(waitTime, 1));
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Report a successful delete to the breaker
+     * @param fileID The ID of the file which was deleted
+     */
+    synchronized void recordSuccess(String fileID) {
+        consecutiveFailures = 0;
+        if(isProbe(fileID)) {
+            log.info("Probe delete succeeded, closing circuit breaker");
+            state = State.CLOSED;
+            probeFileID = null;
+            resetWindow();
+            notifyAll();
+            return;
+        }
+        addToWindow(false);
+    }
+
+    /**
+     * Report a failed delete to the breaker
+     * @param fileID The ID of the file which failed to be deleted
+     */
+    synchronized void recordFailure(String fileID) {
+        consecutiveFailures++;
+        if(isProbe(fileID)) {
+            log.warn("Probe delete failed, circuit breaker stays open");
+            state = State.OPEN;
+            probeFileID = null;
+            notifyAll();
+            return;
+        }
+        addToWindow(true);
+        if(state == State.CLOSED && shouldTrip()) {
+            log.warn("Tripping circuit breaker after {} consecutive failures and {} failures in the last {} deletes",
+                    consecutiveFailures, windowFailures, windowCount);
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            lastProbeAt = openedAt;
+        }
+    }
+
+    /**
+     * Cancel the breaker, e.g. because the purge is stopped. 
+     * Wakes any thread waiting for permission, and refuses all further permissions.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * Get the current state of the breaker
+     */
+    synchronized State getState() {
+        return state;
+    }
+
+    private boolean isProbe(String fileID) {
+        return state == State.HALF_OPEN && probeFileID != null && probeFileID.equals(fileID);
+    }
+
+    private boolean shouldTrip() {
+        if(consecutiveFailureThreshold > 0 && consecutiveFailures >= consecutiveFailureThreshold) {
+            return true;
+        }
+        return failureRateThreshold > 0 && windowCount == window.length
+                && windowFailures * 100 >= failureRateThreshold * window.length;
+    }
+
+    private void addToWindow(boolean failure) {
+        if(windowCount == window.length) {
+            if(window[windowPosition]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowPosition] = failure;
+        if(failure) {
+            windowFailures++;
+        }
+        windowPosition = (windowPosition + 1) % window.length;
+    }
+
+    private void resetWindow() {
+        windowPosition = 0;
+        windowCount = 0;
+        windowFailures = 0;
+        consecutiveFailures = 0;
+    }
+}
@@ -1,5 +1,6 @@
 package dk.statsbiblioteket.medieplatform.bitrepository.purger;
 
+import org.bitrepository.client.eventhandler.ContributorFailedEvent;
 import org.bitrepository.client.eventhandler.EventHandler;
 import org.bitrepository.client.eventhandler.OperationEvent;
 import org.slf4j.Logger;
@@ -9,24 +10,35 @@ import dk.statsbiblioteket.medieplatform.bitrepository.purger.DeleteJob.JobStatu
 
 /**
  * Event handler class to handle the outcome of the operations. 
- * Only two types of events are handled: COMPLETE and FAILED
- * COMPLETE is handled by just removing the job from the operationLimiter
- * FAILURE is handled by removing the job from the operationLimiter and reporting it as failed.  
+ * Only three types of events are handled: COMPLETE, COMPONENT_FAILED and FAILED
+ * COMPLETE is handled by removing the job from the operationLimiter and recording it in the audit log
+ * COMPONENT_FAILED is handled by keeping the information and the response code of the failure on the job.
+ * FAILURE is handled by classifying the cause of the failure, removing the job from the operationLimiter, 
+ * recording it in the audit log and reporting it as failed.  
+ * Both outcomes are reported to the circuit breaker. Failures caused by the specific file rather than the pillar
+ * are reported as successes, as the pillar did handle the request.
  */
 public class DeleteFileEventHandler implements EventHandler {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private final ParallelOperationLimiter operationLimiter;
     private final ResultHandler resultHandler;
+    private final AuditLog auditLog;
+    private final CircuitBreaker circuitBreaker;
     
     /**
      * Create the event handler
      * @param operationLimiter The operation limiter for access to the job queue
      * @param resultHandler ResultHandler to report failed jobs to.
+     * @param auditLog The audit log to record the outcome of each job in.
+     * @param circuitBreaker The circuit breaker to report the outcome of each job to.
      */
-    DeleteFileEventHandler(ParallelOperationLimiter operationLimiter, ResultHandler resultHandler) {
+    DeleteFileEventHandler(ParallelOperationLimiter operationLimiter, ResultHandler resultHandler, 
+            AuditLog auditLog, CircuitBreaker circuitBreaker) {
         this.operationLimiter = operationLimiter;
         this.resultHandler = resultHandler;
+        this.auditLog = auditLog;
+        this.circuitBreaker = circuitBreaker;
     }
     
     @Override
@@ -34,15 +46,38 @@ public class DeleteFileEventHandler implements EventHandler {
         if (event.getEventType().equals(OperationEvent.OperationEventType.COMPLETE)) {
             DeleteJob job = getJob(event);
             if(job != null) {
-                log.info("Completed deleting file '{}' with checksum '{}'", job.getFileID(), job.getChecksum());
+                log.debug("Completed deleting file '{}' with checksum '{}'", job.getFileID(), job.getChecksum());
+                job.setStatus(JobStatus.COMPLETED);
+                auditLog.record(job, JobStatus.COMPLETED);
+                circuitBreaker.recordSuccess(job.getFileID());
                 operationLimiter.removeJob(job);
             } 
+        } else if (event.getEventType().equals(OperationEvent.OperationEventType.COMPONENT_FAILED)) {
+            DeleteJob job = getJob(event);
+            if(job != null) {
+                job.setFailureInfo(event.getInfo());
+                if(event instanceof ContributorFailedEvent) {
+                    job.setResponseCode(((ContributorFailedEvent) event).getResponseCode());
+                }
+            }
         } else if (event.getEventType().equals(OperationEvent.OperationEventType.FAILED)) {
             DeleteJob job = getJob(event);
             if(job != null) {
-                log.info("Failed deleting file '{}' with checksum '{}'", job.getFileID(), job.getChecksum());
+                String info = job.getFailureInfo() == null ? event.getInfo() 
+                        : job.getFailureInfo() + "; " + event.getInfo();
+                FailureType failureType = FailureType.classify(job.getResponseCode(), info);
+                log.debug("Failed deleting file '{}' with checksum '{}' ({}): {}", job.getFileID(), job.getChecksum(),
+                        failureType, info);
                 job.setStatus(JobStatus.FAILED);
+                job.setFailureType(failureType);
+                job.setFailureInfo(info);
+                auditLog.record(job, JobStatus.FAILED);
                 resultHandler.addFailure(job);
+                if(failureType.isFileSpecific()) {
+                    circuitBreaker.recordSuccess(job.getFileID());
+                } else {
+                    circuitBreaker.recordFailure(job.getFileID());
+                }
                 operationLimiter.removeJob(job);
             }
         }
@@ -1,8 +1,12 @@
 package dk.statsbiblioteket.medieplatform.bitrepository.purger;
 
+import org.bitrepository.bitrepositoryelements.ResponseCode;
+
 /**
  * Class representing a DeleteJob
  * The class carries the basic information about a job i.e. fileID, checksum and status 
+ * For failed jobs, the classified cause of the failure and the information and response code it was classified from
+ * is also carried.
  */
 public class DeleteJob {
 
@@ -10,6 +14,7 @@ public class DeleteJob {
      * Enum to indicate the status of jobs 
      */
     public enum JobStatus {
+        COMPLETED,
         FAILED,
         TIMEOUT, 
         DRYRUN, 
@@ -18,7 +23,11 @@ public class DeleteJob {
     
     private final String fileID;
     private final String checksum;
+    private final long lineNumber;
     private JobStatus status;
+    private FailureType failureType;
+    private String failureInfo;
+    private ResponseCode responseCode;
     
     /**
      * Constructor for creating a DeleteJob, the job's status is initialized with the CREATED status.
@@ -26,8 +35,20 @@ public class DeleteJob {
      * @param checksum The checksum for the file 
      */
     DeleteJob(String fileID, String checksum) {
+        this(fileID, checksum, 0);
+    }
+    
+    /**
+     * Constructor for creating a DeleteJob for a line of the file list, the job's status is initialized with 
+     * the CREATED status.
+     * @param fileID The ID of the file that the job is about
+     * @param checksum The checksum for the file 
+     * @param lineNumber The number of the line in the file list the job was created from, starting from 1
+     */
+    DeleteJob(String fileID, String checksum, long lineNumber) {
         this.fileID = fileID;
         this.checksum = checksum;
+        this.lineNumber = lineNumber;
         this.status = JobStatus.CREATED;
     }
     
@@ -60,10 +81,62 @@ public class DeleteJob {
         return checksum;
     }
     
+    /**
+     * Get the number of the line in the file list the job was created from.
+     * 0 if the job was not created from a file list.
+     */
+    long getLineNumber() {
+        return lineNumber;
+    }
+    
+    /**
+     * Get the classified cause of the failure of the job.
+     * Null if the job has not failed. 
+     */
+    FailureType getFailureType() {
+        return failureType;
+    }
+    
+    /**
+     * Set the classified cause of the failure of the job 
+     */
+    void setFailureType(FailureType failureType) {
+        this.failureType = failureType;
+    }
+    
+    /**
+     * Get the information about the failure of the job, as given by the bitrepository client.
+     * Null if no information is available. 
+     */
+    String getFailureInfo() {
+        return failureInfo;
+    }
+    
+    /**
+     * Set the information about the failure of the job 
+     */
+    void setFailureInfo(String failureInfo) {
+        this.failureInfo = failureInfo;
+    }
+    
+    /**
+     * Get the response code the pillar reported when failing the job.
+     * Null if the pillar has not reported a failure. 
+     */
+    ResponseCode getResponseCode() {
+        return responseCode;
+    }
+    
+    /**
+     * Set the response code the pillar reported when failing the job 
+     */
+    void setResponseCode(ResponseCode responseCode) {
+        this.responseCode = responseCode;
+    }
     
     @Override
     public String toString() {
         return "DeleteJob [fileID=" + fileID + ", checksum=" + checksum
-                + ", status=" + status + "]";
+                + ", status=" + status + ", failureType=" + failureType + "]";
     }
 }
@@ -0,0 +1,93 @@
+package dk.statsbiblioteket.medieplatform.bitrepository.purger;
+
+import org.bitrepository.bitrepositoryelements.ResponseCode;
+
+/**
+ * Classification of the cause of a failed delete.
+ * The classification is based on the response code of the pillar reported with the contributor failure, and on the
+ * timeouts of the bitrepository client. It is used to decide whether retrying the delete makes sense.
+ *
+ * There is no class for authorization failures, as the pillar protocol has no response code for them. 
+ * They are classified as UNKNOWN, or as TIMEOUT when the pillar does not answer the request.
+ */
+public enum FailureType {
+    /** The checksum supplied did not match the checksum of the file on the pillar */
+    CHECKSUM_MISMATCH(false, true),
+    /** The file was not found on the pillar, e.g. because it has already been deleted */
+    FILE_NOT_FOUND(false, true),
+    /** The pillar did not answer in time */
+    TIMEOUT(true, false),
+    /** The cause of the failure could not be determined */
+    UNKNOWN(true, false);
+
+    /** The information given by the bitrepository client when an operation or identification times out */
+    private static final String CLIENT_TIMEOUT_INFO = "Time has run out";
+
+    private final boolean retryable;
+    private final boolean fileSpecific;
+
+    FailureType(boolean retryable, boolean fileSpecific) {
+        this.retryable = retryable;
+        this.fileSpecific = fileSpecific;
+    }
+
+    /**
+     * Whether a delete failing for this reason may succeed if retried
+     */
+    boolean isRetryable() {
+        return retryable;
+    }
+
+    /**
+     * Whether the failure is caused by the specific file, rather than by the pillar being unable to handle deletes
+     */
+    boolean isFileSpecific() {
+        return fileSpecific;
+    }
+
+    /**
+     * Classify a failure from the response code of the pillar and the information given in the failure events.
+     * The information is only used to recognize the timeouts of the bitrepository client, as its free text does
+     * not reliably tell the cause, e.g. a checksum calculation timing out is not a checksum mismatch.
+     * @param responseCode The response code reported by the pillar, null if the pillar did not report a failure
+     * @param info The information from the failure events, may be null
+     * @return The type of the failure, UNKNOWN if it could not be classified
+     */
+    static FailureType classify(ResponseCode responseCode, String info) {
+        FailureType type = responseCode == null ? UNKNOWN : fromResponseCode(responseCode);
+        if(type == UNKNOWN && info != null && info.contains(CLIENT_TIMEOUT_INFO)) {
+            return TIMEOUT;
+        }
+        return type;
+    }
+
+    /**
+     * Classify a failure from a pillar response code.
+     * @param responseCode The response code
+     * @return The type of the failure, UNKNOWN if the response code does not tell the cause
+     */
+    static FailureType fromResponseCode(ResponseCode responseCode) {
+        switch(responseCode) {
+            case EXISTING_FILE_CHECKSUM_FAILURE:
+                return CHECKSUM_MISMATCH;
+            case FILE_NOT_FOUND_FAILURE:
+                return FILE_NOT_FOUND;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    /**
+     * Get the failure type with the given name.
+     * @param name The name of the failure type
+     * @return The failure type, or null if there is no failure type with that name
+     */
+    static FailureType fromName(String name) {
+        for(FailureType type : values()) {
+            if(type.name().equals(name)) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
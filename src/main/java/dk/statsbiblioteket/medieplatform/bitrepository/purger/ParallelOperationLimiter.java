@@ -1,7 +1,9 @@
 package dk.statsbiblioteket.medieplatform.bitrepository.purger;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -42,18 +44,24 @@ import dk.statsbiblioteket.medieplatform.bitrepository.purger.DeleteJob.JobStatu
     /**
      * Gets the PutJob for fileID
      * @param fileID The fileID to get the job for
-     * @return PutJob the PutJob with relevant info for the job. 
+     * @return PutJob the PutJob with relevant info for the job, or null if there is no active job for the fileID. 
      */
     DeleteJob getJob(String fileID) {
         Iterator<DeleteJob> iter = activeOperations.iterator();
-        DeleteJob job = null;
         while(iter.hasNext()) {
-            job = iter.next();
+            DeleteJob job = iter.next();
             if(job.getFileID().equals(fileID)) {
-                break;
+                return job;
             }
         }
-        return job;
+        return null;
+    }
+
+    /**
+     * Get the jobs currently in the queue
+     */
+    List<DeleteJob> getActiveJobs() {
+        return new ArrayList<>(activeOperations);
     }
 
     /**
@@ -81,6 +89,7 @@ import dk.statsbiblioteket.medieplatform.bitrepository.purger.DeleteJob.JobStatu
             log.warn(message);
             for (DeleteJob job : activeOperations.toArray(new DeleteJob[activeOperations.size()])) {
                 job.setStatus(JobStatus.TIMEOUT);
+                job.setFailureType(FailureType.TIMEOUT);
                 resultHandler.addFailure(job);
             }
         }
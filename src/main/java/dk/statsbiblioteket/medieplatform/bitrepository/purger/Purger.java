@@ -1,10 +1,15 @@
 package dk.statsbiblioteket.medieplatform.bitrepository.purger;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jms.JMSException;
 
@@ -27,9 +32,23 @@ import dk.statsbiblioteket.medieplatform.bitrepository.purger.DeleteJob.JobStatu
  * The class supports making a dryrun (showing what was intended to be done, without deleting any files).
  * 
  * In the event of a non-dryrun, the files are deleted asynchronously to speed the process up.
- * Failed files, or files that were in the process of being deleted when a timeout occurs will be listed on STDOUT.
+ * Failed files, or files that were in the process of being deleted when a timeout occurs will be listed on STDOUT,
+ * along with the classified cause of the failure. The listing can be used directly as input for a later purge.
+ * The outcome of each individual delete is recorded in the audit log, while the regular log only gets a summary.
+ * 
+ * Dispatch of deletes is guarded by a circuit breaker. If the pillar keeps failing the deletes, the purge is aborted
+ * and the lines not yet processed are written to a new file list next to the original, with the suffix '.remaining'.
+ * 
+ * The purge can be limited to a single shard of the file list, so several purgers can share the work on the same list.
  */
 public class Purger {
+    /** Prefix of comment lines in file lists, which are ignored */
+    static final String COMMENT_PREFIX = "#";
+    /** The header line of the reported results */
+    static final String REPORT_HEADER = COMMENT_PREFIX + "FileID\tChecksum\tStatus\tFailureType\tInfo";
+    /** Placeholder for columns without a value in the reported results */
+    private static final String NO_VALUE = "-";
+    
     private final Logger log = LoggerFactory.getLogger(getClass());
     
     private final DeleteFileClient deleteClient;
@@ -39,9 +58,13 @@ public class Purger {
     private final ResultHandler resultHandler;
     private final EventHandler eventHandler;
     private final String deleteMessage;
+    private final AuditLog auditLog;
+    private final CircuitBreaker circuitBreaker;
+    private volatile boolean stopped = false;
+    private volatile long handledLines = 0;
     
     /**
-     * Create the purger
+     * Create the purger without an audit log and with a circuit breaker which never trips
      * @param deleteClient The client used to delete files 
      * @param collectionID The collection in which the files should be deleted from
      * @param pillarID The pillar from which the files should be deleted
@@ -49,13 +72,31 @@ public class Purger {
      * @param maxRuntime The maximum number of seconds that will be waited before shutting down the purger 
      */
     Purger(DeleteFileClient deleteClient, String collectionID, String pillarID, String deleteMessage, int maxAsync, int maxRuntime) {
+        this(deleteClient, collectionID, pillarID, deleteMessage, maxAsync, maxRuntime, new AuditLog(), 
+                new CircuitBreaker());
+    }
+    
+    /**
+     * Create the purger
+     * @param deleteClient The client used to delete files 
+     * @param collectionID The collection in which the files should be deleted from
+     * @param pillarID The pillar from which the files should be deleted
+     * @param maxAsync The maximum number of asynchronous deletes 
+     * @param maxRuntime The maximum number of seconds that will be waited before shutting down the purger 
+     * @param auditLog The audit log to record the outcome of each delete in
+     * @param circuitBreaker The circuit breaker guarding the dispatch of deletes
+     */
+    Purger(DeleteFileClient deleteClient, String collectionID, String pillarID, String deleteMessage, int maxAsync, 
+            int maxRuntime, AuditLog auditLog, CircuitBreaker circuitBreaker) {
         this.deleteClient = deleteClient;
         this.collectionID = collectionID;
         this.pillarID = pillarID;
         this.deleteMessage = deleteMessage;
+        this.auditLog = auditLog;
+        this.circuitBreaker = circuitBreaker;
         resultHandler = new ResultHandler();
         operationLimiter = new ParallelOperationLimiter(resultHandler, maxAsync, maxRuntime);
-        eventHandler = new DeleteFileEventHandler(operationLimiter, resultHandler);
+        eventHandler = new DeleteFileEventHandler(operationLimiter, resultHandler, auditLog, circuitBreaker);
     }
     
     /**
@@ -66,35 +107,160 @@ public class Purger {
      * @param dryRun Boolean to indicate if the purge should be a dry run. If true, no files will be deleted
      */
     public void purge(File fileList, boolean dryRun) {
-        try(BufferedReader br = new BufferedReader(new FileReader(fileList));) {
-            String line;
-            while((line = br.readLine()) != null) {
-                String[] tokens = line.trim().split("\\s");
-                if(tokens.length == 2) {
-                    String fileID = tokens[0];
-                    String checksum = tokens[1];
-                    DeleteJob job = new DeleteJob(fileID, checksum);
-                    if(dryRun) {
-                        job.setStatus(JobStatus.DRYRUN);
-                        resultHandler.addDryRun(job);
+        purge(fileList, dryRun, Shard.ALL);
+    }
+    
+    /**
+     * Perform the purge of the files in the supplied file belonging to the given shard. 
+     * The file format should be <fileID>\t<checksum>
+     * 
+     * @param fileList The file containing the list of files to be deleted, along with their checksum
+     * @param dryRun Boolean to indicate if the purge should be a dry run. If true, no files will be deleted
+     * @param shard The shard of the file list to purge. Files not belonging to the shard are skipped. 
+     * @return true if all the files were processed, false if the purge was aborted or stopped.
+     */
+    public boolean purge(File fileList, boolean dryRun, Shard shard) {
+        return purge(fileList, dryRun, shard, false);
+    }
+    
+    /**
+     * Perform the purge of the files in the supplied file belonging to the given shard. 
+     * The file format should be <fileID>\t<checksum>, optionally followed by more tab separated columns
+     * as in the reported results. Lines starting with '#' are ignored.
+     * 
+     * @param fileList The file containing the list of files to be deleted, along with their checksum
+     * @param dryRun Boolean to indicate if the purge should be a dry run. If true, no files will be deleted
+     * @param shard The shard of the file list to purge. Files not belonging to the shard are skipped. 
+     * @param retryableOnly If true, files listed with a failure type which is not retryable are skipped.
+     * @return true if all the files were processed, false if the purge was aborted by the circuit breaker, 
+     * or stopped.
+     */
+    public boolean purge(File fileList, boolean dryRun, Shard shard, boolean retryableOnly) {
+        return purge(fileList, dryRun, shard, retryableOnly, 0);
+    }
+    
+    /**
+     * Resume the purge of the files in the supplied file belonging to the given shard, skipping the lines 
+     * handled by an earlier purge. 
+     * 
+     * @param fileList The file containing the list of files to be deleted, along with their checksum
+     * @param dryRun Boolean to indicate if the purge should be a dry run. If true, no files will be deleted
+     * @param shard The shard of the file list to purge. Files not belonging to the shard are skipped. 
+     * @param retryableOnly If true, files listed with a failure type which is not retryable are skipped.
+     * @param startLine The number of lines at the start of the file list to skip, see {@link #getHandledLines()}
+     * @return true if all the files were processed, false if the purge was aborted by the circuit breaker, 
+     * or stopped.
+     */
+    public boolean purge(File fileList, boolean dryRun, Shard shard, boolean retryableOnly, long startLine) {
+        try {
+            int jobCount = 0;
+            int skippedCount = 0;
+            boolean aborted = false;
+            long lineNumber = 0;
+            handledLines = startLine;
+            try(BufferedReader br = new BufferedReader(new FileReader(fileList));) {
+                String line;
+                while((line = br.readLine()) != null) {
+                    handledLines = Math.max(lineNumber, startLine);
+                    lineNumber++;
+                    if(lineNumber <= startLine || line.startsWith(COMMENT_PREFIX)) {
+                        continue;
+                    }
+                    String[] columns = parseLine(line);
+                    if(columns != null) {
+                        String fileID = columns[0];
+                        String checksum = columns[1];
+                        if(!shard.contains(fileID)) {
+                            continue;
+                        }
+                        if(retryableOnly && !isRetryable(columns)) {
+                            skippedCount++;
+                            continue;
+                        }
+                        if(stopped) {
+                            log.warn("Purge of shard {} was stopped before line '{}'", shard, line);
+                            break;
+                        }
+                        DeleteJob job = new DeleteJob(fileID, checksum, lineNumber);
+                        if(dryRun) {
+                            job.setStatus(JobStatus.DRYRUN);
+                            resultHandler.addDryRun(job);
+                            jobCount++;
+                        } else if(circuitBreaker.awaitPermission(fileID)) {
+                            deleteFile(job);
+                            jobCount++;
+                        } else if(stopped) {
+                            log.warn("Purge of shard {} was stopped before line '{}'", shard, line);
+                            break;
+                        } else {
+                            aborted = true;
+                            writeRemainder(line, br, shard, getRemainderFile(fileList, shard));
+                            break;
+                        }
                     } else {
-                        deleteFile(job);    
+                        log.warn("Malformed line encountered. Line was: '" + line + "'. Line was ignored");
                     }
-                } else {
-                    log.warn("Malformed line encountered. Line was: '" + line + "'. Line was ignored");
                 }
+                if(!aborted && !stopped) {
+                    handledLines = Math.max(lineNumber, startLine);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
         
-        operationLimiter.waitForFinish();
+            operationLimiter.waitForFinish();
         
-        if(dryRun) {
-            reportResults(resultHandler.getDryRuns());
-        } else {
-            reportResults(resultHandler.getFailedJobs());
+            if(skippedCount > 0) {
+                log.info("Skipped {} files which previously failed for a reason which is not retryable", skippedCount);
+            }
+            if(dryRun) {
+                log.info("Finished dry run of {} files in shard {}", jobCount, shard);
+                reportResults(resultHandler.getDryRuns());
+            } else {
+                for(DeleteJob job : resultHandler.getFailedJobs()) {
+                    if(job.getStatus() == JobStatus.TIMEOUT) {
+                        auditLog.record(job, JobStatus.TIMEOUT);
+                    }
+                }
+                if(aborted) {
+                    log.error("Aborted purge after {} files as the pillar keeps failing. "
+                            + "Remaining files are listed in '{}'", jobCount, getRemainderFile(fileList, shard));
+                }
+                log.info("Finished purging {} files in shard {}, {} were not deleted", jobCount, shard, 
+                        resultHandler.getFailedJobs().size());
+                if(!resultHandler.getFailedJobs().isEmpty()) {
+                    log.info("Files not deleted by failure type: {}", countFailureTypes(resultHandler.getFailedJobs()));
+                }
+                reportResults(resultHandler.getFailedJobs());
+            }
+            return !aborted && !stopped;
+        } finally {
+            auditLog.close();
+        }
+    }
+    
+    /**
+     * Stop the purge. No more deletes are dispatched, but the deletes already dispatched are waited for
+     * and reported as usual. A purge waiting for the circuit breaker to let deletes through is woken.
+     */
+    void stop() {
+        stopped = true;
+        circuitBreaker.cancel();
+    }
+    
+    /**
+     * Get the number of lines at the start of the file list which have been handled, i.e. the files in them 
+     * have either been skipped or their deletes have finished. A purge resumed after these lines does not miss 
+     * any files, but may retry deletes which finished in the lines after them.
+     */
+    long getHandledLines() {
+        long handled = handledLines;
+        for(DeleteJob job : operationLimiter.getActiveJobs()) {
+            if(job.getStatus() != JobStatus.TIMEOUT) {
+                handled = Math.min(handled, job.getLineNumber() - 1);
+            }
         }
+        return handled;
     }
     
     /**
@@ -104,11 +270,91 @@ public class Purger {
      */
     private void deleteFile(DeleteJob job) {
         operationLimiter.addJob(job);
-        log.info("Added delete job for file {}", job.getFileID());
+        log.debug("Added delete job for file {}", job.getFileID());
         deleteClient.deleteFile(collectionID, job.getFileID(), pillarID, getChecksumData(job.getChecksum()), null, 
                 eventHandler, deleteMessage);
     }
     
+    /**
+     * Split a line of a file list into its columns. 
+     * The line should either be a fileID and a checksum separated by whitespace, or tab separated columns
+     * starting with the fileID and the checksum, as in the reported results. 
+     * @param line The line to split
+     * @return The columns of the line, or null if the line is malformed
+     */
+    static String[] parseLine(String line) {
+        String[] columns = line.trim().split("\t");
+        if(columns.length == 1) {
+            columns = line.trim().split("\\s");
+            if(columns.length != 2) {
+                return null;
+            }
+        }
+        if(columns.length < 2 || !columns[0].matches("\\S+") || !columns[1].matches("\\S+")) {
+            return null;
+        }
+        return columns;
+    }
+    
+    /**
+     * Determine if a file list line may be retried. 
+     * Lines without a failure type, or with a failure type that is not known, are considered retryable.
+     * @param columns The columns of the line
+     */
+    private boolean isRetryable(String[] columns) {
+        if(columns.length < 4) {
+            return true;
+        }
+        FailureType failureType = FailureType.fromName(columns[3]);
+        return failureType == null || failureType.isRetryable();
+    }
+    
+    /**
+     * Count the jobs for each type of failure 
+     */
+    private Map<FailureType, Integer> countFailureTypes(List<DeleteJob> jobs) {
+        Map<FailureType, Integer> counts = new EnumMap<>(FailureType.class);
+        for(DeleteJob job : jobs) {
+            FailureType failureType = job.getFailureType() == null ? FailureType.UNKNOWN : job.getFailureType();
+            Integer count = counts.get(failureType);
+            counts.put(failureType, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+    
+    /**
+     * Get the file to write the unprocessed remainder of a shard of a file list to.
+     * @param fileList The file list being purged 
+     * @param shard The shard being purged
+     */
+    static File getRemainderFile(File fileList, Shard shard) {
+        if(shard.getCount() == 1) {
+            return new File(fileList.getPath() + ".remaining");
+        }
+        return new File(fileList.getPath() + "." + shard.getName() + ".remaining");
+    }
+    
+    /**
+     * Write the unprocessed remainder of the file list, so it can be used as input for a later purge.
+     * @param currentLine The line which was being processed when the purge was aborted
+     * @param remainingLines The reader positioned at the line after the current line
+     * @param shard The shard being purged, lines for files in other shards are left out
+     * @param remainderFile The file to write the remainder to
+     */
+    private void writeRemainder(String currentLine, BufferedReader remainingLines, Shard shard, File remainderFile) 
+            throws IOException {
+        try(BufferedWriter bw = new BufferedWriter(new FileWriter(remainderFile))) {
+            String line = currentLine;
+            do {
+                String[] columns = parseLine(line);
+                if(columns == null || shard.contains(columns[0])) {
+                    bw.write(line);
+                    bw.newLine();
+                }
+            } while((line = remainingLines.readLine()) != null);
+        }
+    }
+    
     /**
      * Make the data structure needed for supplying the checksum for deleting a file
      * The current implementation assumes that MD5 checksums are used. 
@@ -125,25 +371,58 @@ public class Purger {
     }
  
     /**
-     * Handle the reporting of results. Results are reported on STDOUT in the form
-     * STATUS: FileID Checksum
+     * Handle the reporting of results. Results are reported on STDOUT as tab separated lines on the form
+     * FileID Checksum STATUS FailureType Info
+     * preceded by a header line starting with '#'. 
+     * Columns without a value, e.g. the failure type for dry runs, are reported as '-'.
      * @param jobs The list of jobs to be reported.   
      */
     protected void reportResults(List<DeleteJob> jobs) {
         if(jobs != null && !jobs.isEmpty()) {
-            System.out.println("STATUS: FileID Checksum");
+            System.out.println(REPORT_HEADER);
             for(DeleteJob job : jobs) {
-                StringBuilder sb = new StringBuilder();
-                sb.append(job.getStatus()).append(": ").append(job.getFileID()).append(" ").append(job.getChecksum());
-                System.out.println(sb.toString());
+                System.out.println(formatResult(job));
             }
         }
     }
     
+    /**
+     * Format the results of the jobs from the first lines of the file list, as they are reported. 
+     * May be called while the purge is running.
+     * @param dryRun Whether the purge is a dry run
+     * @param lines The number of lines at the start of the file list to give the results for
+     */
+    List<String> formatResults(boolean dryRun, long lines) {
+        List<DeleteJob> jobs = dryRun ? resultHandler.getDryRuns() : resultHandler.getFailedJobs();
+        List<String> results = new ArrayList<>();
+        synchronized(jobs) {
+            for(DeleteJob job : jobs) {
+                if(job.getLineNumber() <= lines) {
+                    results.add(formatResult(job));
+                }
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Format the result of a single job as reported. 
+     */
+    private String formatResult(DeleteJob job) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(job.getFileID()).append("\t").append(job.getChecksum()).append("\t").append(job.getStatus());
+        sb.append("\t").append(job.getFailureType() == null ? NO_VALUE : job.getFailureType());
+        String info = job.getFailureInfo();
+        sb.append("\t").append(info == null ? NO_VALUE : info.replaceAll("\\s+", " ").trim());
+        return sb.toString();
+    }
+    
     /**
      * Method to shutdown the client properly.
+     * The message bus is shared by all purgers, so this is done once when all purges are done.
      */
-    public void shutdown() {
+    public static void shutdown() {
+        Logger log = LoggerFactory.getLogger(Purger.class);
         try {
             MessageBus messageBus = MessageBusManager.getMessageBus();
             if (messageBus != null) {
@@ -25,11 +25,15 @@ import org.bitrepository.protocol.security.MessageAuthenticator;
 import org.bitrepository.protocol.security.MessageSigner;
 import org.bitrepository.protocol.security.OperationAuthorizor;
 import org.bitrepository.protocol.security.PermissionStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Class for invoking the purger component 
  */
 public class PurgerCli {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    
     private final static String COLLECTION_ID_PROPERTY = "bitrepository.purger.collectionid";
     private final static String PILLAR_ID_PROPERTY = "bitrepository.purger.pillarid";
     private final static String CLIENT_ID_PROPERTY = "bitrepository.purger.componentid";
@@ -38,16 +42,36 @@ public class PurgerCli {
     private final static String MAX_ASYNC_PROPERTY = "bitrepository.purger.numberofasyncdeletes";
     private final static String MAX_RUNTIME_PROPERTY = "bitrepository.purger.maxruntime";
     private final static String DELETE_MESSAGE_PROPERTY = "bitrepository.purger.message";
+    private final static String AUDIT_LOG_PROPERTY = "bitrepository.purger.auditlog";
+    private final static String AUDIT_LOG_FSYNC_INTERVAL_PROPERTY = "bitrepository.purger.auditlog.fsyncinterval";
+    private final static String BREAKER_WINDOW_PROPERTY = "bitrepository.purger.circuitbreaker.window";
+    private final static String BREAKER_FAILURE_RATE_PROPERTY = "bitrepository.purger.circuitbreaker.failurerate";
+    private final static String BREAKER_CONSECUTIVE_FAILURES_PROPERTY = 
+            "bitrepository.purger.circuitbreaker.consecutivefailures";
+    private final static String BREAKER_PROBE_INTERVAL_PROPERTY = "bitrepository.purger.circuitbreaker.probeinterval";
+    private final static String BREAKER_MAX_OPEN_TIME_PROPERTY = "bitrepository.purger.circuitbreaker.maxopentime";
+    private final static String LEASE_TIMEOUT_PROPERTY = "bitrepository.purger.shard.leasetimeout";
     
     private final static String PERFORM_DELETE_OPT = "performdelete";
     private final static String FILELIST_OPT = "filelist";
+    private final static String SHARD_OPT = "shard";
+    private final static String LEASEDIR_OPT = "leasedir";
+    private final static String RETRYABLE_OPT = "retryable";
+    
+    /** Exit status when the purge stopped before all files were processed */
+    private final static int INCOMPLETE_EXIT_STATUS = 2;
         
     /** The client for performing the DeleteFile operations.*/
     private DeleteFileClient client;
-    private Purger purger;
     /**  */
     boolean dryRun = true;
     File filesForDeletion;
+    /** The shard of the file list to purge */
+    Shard shard = Shard.ALL;
+    /** The directory for coordinating shards between purgers, null if not coordinating */
+    File leaseDir;
+    /** Whether to skip files which previously failed for a reason which is not retryable */
+    boolean retryableOnly = false;
     Properties properties;
     Settings settings;
     
@@ -59,7 +83,9 @@ public class PurgerCli {
             throw new RuntimeException("Failed to initialize client", e);
         }
         
-        purgerCli.purge();
+        if(!purgerCli.purge()) {
+            System.exit(INCOMPLETE_EXIT_STATUS);
+        }
     }
     
     public PurgerCli() {
@@ -73,12 +99,47 @@ public class PurgerCli {
         parseArgs(args);
         loadSettings();
         createDeleteClient();
+    }
+    
+    /**
+     * Create a purger. As a purger handles a single purge, one is needed for each shard purged.  
+     */
+    private Purger createPurger() throws IOException {
         int maxAsync = Integer.parseInt(properties.getProperty(MAX_ASYNC_PROPERTY));
         int maxRuntime = Integer.parseInt(properties.getProperty(MAX_RUNTIME_PROPERTY));
         
-        purger = new Purger(client, properties.getProperty(COLLECTION_ID_PROPERTY),
+        return new Purger(client, properties.getProperty(COLLECTION_ID_PROPERTY),
                 properties.getProperty(PILLAR_ID_PROPERTY), properties.getProperty(DELETE_MESSAGE_PROPERTY),
-                maxAsync, maxRuntime);
+                maxAsync, maxRuntime, createAuditLog(), createCircuitBreaker());
+    }
+    
+    /**
+     * Create the circuit breaker guarding the deletes. 
+     * If the circuit breaker is not configured, a circuit breaker which never trips is returned.  
+     * Properties of a configured circuit breaker which are left out get the same defaults as in the shipped config.
+     */
+    private CircuitBreaker createCircuitBreaker() {
+        if(properties.getProperty(BREAKER_WINDOW_PROPERTY) == null) {
+            return new CircuitBreaker();
+        }
+        return new CircuitBreaker(Integer.parseInt(properties.getProperty(BREAKER_WINDOW_PROPERTY)),
+                Integer.parseInt(properties.getProperty(BREAKER_FAILURE_RATE_PROPERTY, "0")),
+                Integer.parseInt(properties.getProperty(BREAKER_CONSECUTIVE_FAILURES_PROPERTY, "0")),
+                Integer.parseInt(properties.getProperty(BREAKER_PROBE_INTERVAL_PROPERTY, "60")),
+                Integer.parseInt(properties.getProperty(BREAKER_MAX_OPEN_TIME_PROPERTY, "1800")));
+    }
+    
+    /**
+     * Create the audit log for the outcome of the individual deletes.
+     * If no audit log file is configured, an audit log discarding all records is returned.  
+     */
+    private AuditLog createAuditLog() throws IOException {
+        String auditLogFile = properties.getProperty(AUDIT_LOG_PROPERTY);
+        if(auditLogFile == null || auditLogFile.trim().isEmpty()) {
+            return new AuditLog();
+        }
+        int fsyncInterval = Integer.parseInt(properties.getProperty(AUDIT_LOG_FSYNC_INTERVAL_PROPERTY, "0"));
+        return new AuditLog(new File(auditLogFile.trim()), fsyncInterval);
     }
     
     /**
@@ -93,8 +154,17 @@ public class PurgerCli {
         Option filelistOpt = new Option(FILELIST_OPT, true, "File containing the list of files to delete");
         filelistOpt.setRequired(true);
         Option performOpt = new Option(PERFORM_DELETE_OPT, false, "Actually do perform the deletion");
+        Option shardOpt = new Option(SHARD_OPT, true, 
+                "Only purge the files in shard i of N of the file list, given as i/N (e.g. 2/4)");
+        Option leaseDirOpt = new Option(LEASEDIR_OPT, true, 
+                "Shared directory for coordinating the shards between purgers, requires -" + SHARD_OPT);
+        Option retryableOpt = new Option(RETRYABLE_OPT, false, 
+                "Skip files listed with a failure type which is not retryable, when using the results of an earlier run");
         options.addOption(filelistOpt);
         options.addOption(performOpt);
+        options.addOption(shardOpt);
+        options.addOption(leaseDirOpt);
+        options.addOption(retryableOpt);
         
         try {
             cmd = parser.parse(options, args, false);
@@ -106,11 +176,33 @@ public class PurgerCli {
         if(cmd.hasOption(PERFORM_DELETE_OPT)) {
             dryRun = false;
         }
+        if(cmd.hasOption(RETRYABLE_OPT)) {
+            retryableOnly = true;
+        }
         filesForDeletion = new File(cmd.getOptionValue(FILELIST_OPT));
         if(!filesForDeletion.exists()) {
             System.err.println("File '" + filesForDeletion + "' does not exist.");
             System.exit(1);
         }
+        if(cmd.hasOption(SHARD_OPT)) {
+            try {
+                shard = Shard.parse(cmd.getOptionValue(SHARD_OPT));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        if(cmd.hasOption(LEASEDIR_OPT)) {
+            leaseDir = new File(cmd.getOptionValue(LEASEDIR_OPT));
+            if(!cmd.hasOption(SHARD_OPT)) {
+                System.err.println("-" + LEASEDIR_OPT + " requires -" + SHARD_OPT);
+                System.exit(1);
+            }
+            if(!leaseDir.isDirectory()) {
+                System.err.println("Lease directory '" + leaseDir + "' does not exist.");
+                System.exit(1);
+            }
+        }
     }
     
     /**
@@ -154,10 +246,53 @@ public class PurgerCli {
     
     /**
      * Method to delegate the actual performance of purging to the purger 
+     * @return true if all files were processed, false if the purge was aborted or stopped early.
+     */
+    public boolean purge() {
+        boolean completed;
+        try {
+            if(leaseDir == null) {
+                completed = createPurger().purge(filesForDeletion, dryRun, shard, retryableOnly);
+            } else {
+                completed = purgeCoordinated();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to purge '" + filesForDeletion + "'", e);
+        } finally {
+            Purger.shutdown();
+        }
+        if(!completed) {
+            log.error("The purge did not process all files");
+        }
+        return completed;
+    }
+    
+    /**
+     * Purge the shards coordinated through the lease directory. 
+     * Starts with the shard given on the commandline, and continues with other shards until all shards are done.
+     * When all shards are done, the results of all shards are merged into one file.
+     * @return true if all shards are done, false if this purger stopped because the purge of a shard was aborted.
      */
-    public void purge() {
-        purger.purge(filesForDeletion, dryRun);
-        purger.shutdown();
+    private boolean purgeCoordinated() throws IOException {
+        int leaseTimeout = Integer.parseInt(properties.getProperty(LEASE_TIMEOUT_PROPERTY, "300"));
+        ShardCoordinator coordinator = new ShardCoordinator(leaseDir, shard.getCount(), leaseTimeout, 
+                filesForDeletion, dryRun, retryableOnly);
+        try {
+            ShardCoordinator.PurgerFactory purgerFactory = new ShardCoordinator.PurgerFactory() {
+                @Override
+                public Purger createPurger() throws IOException {
+                    return PurgerCli.this.createPurger();
+                }
+            };
+            if(!coordinator.purgeShards(shard, purgerFactory)) {
+                return false;
+            }
+            File mergedResults = coordinator.mergeResultsIfDone(Purger.REPORT_HEADER);
+            log.info("All shards are done, results are merged in '{}'", mergedResults);
+            return true;
+        } finally {
+            coordinator.close();
+        }
     }
     
 }
@@ -1,6 +1,7 @@
 package dk.statsbiblioteket.medieplatform.bitrepository.purger;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -8,6 +9,7 @@ import java.util.List;
  * Currently two types of results are colleted:
  * - Failed jobs, i.e. jobs that have failed for some reason.
  * - Dry runs, i.e. jobs that was really not started.  
+ * The lists are synchronized, as results are added by the event handling threads. 
  */
 public class ResultHandler {
     List<DeleteJob> failedJobs;
@@ -17,8 +19,8 @@ public class ResultHandler {
      * Create the result handler. 
      */
     public ResultHandler() {
-        failedJobs = new ArrayList<>();
-        dryRuns = new ArrayList<>();
+        failedJobs = Collections.synchronizedList(new ArrayList<DeleteJob>());
+        dryRuns = Collections.synchronizedList(new ArrayList<DeleteJob>());
     }
     
     /**
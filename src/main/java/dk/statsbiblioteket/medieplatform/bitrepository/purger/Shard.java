@@ -0,0 +1,89 @@
+package dk.statsbiblioteket.medieplatform.bitrepository.purger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Class representing one partition (shard) of a file list, used for splitting a purge between several purgers.
+ * A file belongs to a shard based on a stable hash (CRC32) of its fileID, so every purger working on the same
+ * file list agrees on the partitioning without any coordination.
+ *
+ * Shards are numbered from 1 to the number of shards, i.e. '2/4' is the second of four shards.
+ */
+public class Shard {
+    /** The shard containing all files, i.e. no sharding */
+    static final Shard ALL = new Shard(1, 1);
+
+    private final int number;
+    private final int count;
+
+    /**
+     * Create the shard
+     * @param number The number of the shard, from 1 to count
+     * @param count The total number of shards
+     */
+    Shard(int number, int count) {
+        if(count < 1 || number < 1 || number > count) {
+            throw new IllegalArgumentException("Invalid shard " + number + "/" + count);
+        }
+        this.number = number;
+        this.count = count;
+    }
+
+    /**
+     * Parse a shard specification on the form <number>/<count>, e.g. '2/4'
+     * @param spec The shard specification
+     * @return The shard
+     * @throws IllegalArgumentException if the specification is not valid
+     */
+    static Shard parse(String spec) {
+        String[] tokens = spec.trim().split("/");
+        if(tokens.length != 2) {
+            throw new IllegalArgumentException("Shard should be on the form <number>/<count>, was '" + spec + "'");
+        }
+        try {
+            return new Shard(Integer.parseInt(tokens[0].trim()), Integer.parseInt(tokens[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Shard should be on the form <number>/<count>, was '" + spec + "'", e);
+        }
+    }
+
+    /**
+     * Determine if a file belongs to this shard
+     * @param fileID The ID of the file
+     */
+    boolean contains(String fileID) {
+        if(count == 1) {
+            return true;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(fileID.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue() % count == number - 1;
+    }
+
+    /**
+     * Get the number of the shard, from 1 to the number of shards
+     */
+    int getNumber() {
+        return number;
+    }
+
+    /**
+     * Get the total number of shards
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Get a name for the shard usable in file names, e.g. 'shard-2-of-4'
+     */
+    String getName() {
+        return "shard-" + number + "-of-" + count;
+    }
+
+    @Override
+    public String toString() {
+        return number + "/" + count;
+    }
+}
@@ -0,0 +1,586 @@
+package dk.statsbiblioteket.medieplatform.bitrepository.purger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates a number of purgers sharing the work on a sharded file list through lease files in a shared directory.
+ *
+ * A purger holds a lease on a shard by having created a lease file for it, and keeps the lease alive by
+ * periodically touching the file. When a shard is done, a done file is created along with a file with the
+ * results for the shard. A lease which has not been touched within the lease timeout is considered stale,
+ * and the shard can be claimed by another purger by creating a lease file of the next generation.
+ * As lease files are created atomically, only one purger can claim a given generation.
+ * A purger whose lease has been taken over stops working on the shard, and leaves the results and the done file
+ * to the new holder of the lease.
+ *
+ * A purger keeps looking for shards to claim until all shards are done. If the purge of a shard is aborted, the
+ * shard is not marked as done, the lease is no longer renewed and the purger stops, so the shard can be claimed
+ * by another purger once the lease is stale.
+ *
+ * While purging a shard, the holder of the lease periodically writes a checkpoint with the number of lines of the
+ * file list it has handled and the results of the files in them, and writes a final checkpoint if the purge is
+ * aborted. A purger claiming the shard resumes after the lines of the latest checkpoint, and includes its results
+ * in the results of the shard. Deletes which finished after the checkpoint are sent again, so if the previous
+ * holder died without aborting, up to the number of asynchronous deletes may be reported as FILE_NOT_FOUND.
+ *
+ * A lease directory belongs to a single purge. The file list, the number of shards and the options of the purge
+ * are recorded in a manifest, and a purger refuses to start when they do not match its own. The file list is
+ * identified by name, size and SHA-256 hash rather than by path, as the purgers may mount it at different paths.
+ * Dry runs are coordinated in the subdirectory 'dryrun', so a dry run does not mark shards as done for a later
+ * purge using the same lease directory.
+ *
+ * The files in the lease directory are named
+ * - manifest for the manifest of the purge
+ * - <shard>.lease.<generation> for the leases
+ * - <shard>.checkpoint.<generation> for the checkpoints written by the holder of each generation of the lease
+ * - <shard>.done for shards which are done
+ * - <shard>.results for the results of a shard
+ * - results for the merged results, once all shards are done.
+ */
+public class ShardCoordinator {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final String LEASE_SUFFIX = ".lease.";
+    private static final String DONE_SUFFIX = ".done";
+    private static final String RESULTS_SUFFIX = ".results";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint.";
+    /** Prefix of the first line of a checkpoint, giving the number of lines handled */
+    private static final String CHECKPOINT_LINES_PREFIX = "#Lines\t";
+    private static final String MERGED_RESULTS_NAME = "results";
+    private static final String MANIFEST_NAME = "manifest";
+    private static final String DRY_RUN_DIR_NAME = "dryrun";
+
+    private final File leaseDir;
+    private final int shardCount;
+    private final File fileList;
+    private final boolean dryRun;
+    private final boolean retryableOnly;
+    private final long leaseTimeoutMillis;
+    private final long pollIntervalMillis;
+    private final Map<String, File> heldLeases;
+    private final Map<String, ShardPurge> activePurgers;
+    private final ScheduledExecutorService renewer;
+
+    /**
+     * Create the coordinator, check that the lease directory belongs to the purge and start renewing the leases held.
+     * @param leaseDir The shared directory containing the lease files
+     * @param shardCount The total number of shards
+     * @param leaseTimeoutSeconds The number of seconds after which a lease which has not been renewed is stale
+     * @param fileList The file list being purged
+     * @param dryRun Whether the purge is a dry run
+     * @param retryableOnly Whether to skip files which previously failed for a reason which is not retryable
+     * @throws IllegalStateException if the lease directory belongs to another purge
+     */
+    ShardCoordinator(File leaseDir, int shardCount, int leaseTimeoutSeconds, File fileList, boolean dryRun, 
+            boolean retryableOnly) throws IOException {
+        if(!leaseDir.isDirectory()) {
+            throw new IllegalArgumentException("Lease directory '" + leaseDir + "' does not exist");
+        }
+        if(dryRun) {
+            leaseDir = new File(leaseDir, DRY_RUN_DIR_NAME);
+            if(!leaseDir.isDirectory() && !leaseDir.mkdir() && !leaseDir.isDirectory()) {
+                throw new IOException("Failed to create directory '" + leaseDir + "' for coordinating dry runs");
+            }
+        }
+        this.leaseDir = leaseDir;
+        this.shardCount = shardCount;
+        this.fileList = fileList;
+        this.dryRun = dryRun;
+        this.retryableOnly = retryableOnly;
+        checkManifest();
+        this.leaseTimeoutMillis = TimeUnit.SECONDS.toMillis(leaseTimeoutSeconds);
+        heldLeases = new ConcurrentHashMap<>();
+        activePurgers = new ConcurrentHashMap<>();
+        renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "purger-lease-renewer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pollIntervalMillis = Math.max(leaseTimeoutMillis / 3, 1);
+        renewer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                renewLeases();
+            }
+        }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Factory for the purgers used for the shards, as a purger only handles a single purge. 
+     */
+    interface PurgerFactory {
+        Purger createPurger() throws IOException;
+    }
+
+    /**
+     * The progress of the purge of a shard, from which a later holder of the lease resumes.
+     */
+    private static class Checkpoint {
+        /** The number of lines at the start of the file list which have been handled */
+        private final long lines;
+        /** The results of the files in the handled lines */
+        private final List<String> results;
+
+        Checkpoint(long lines, List<String> results) {
+            this.lines = lines;
+            this.results = results;
+        }
+    }
+
+    /**
+     * The purge of a shard running in this purger, along with the checkpoint it resumed from.
+     */
+    private static class ShardPurge {
+        private final Shard shard;
+        private final Purger purger;
+        private final Checkpoint resumedFrom;
+
+        ShardPurge(Shard shard, Purger purger, Checkpoint resumedFrom) {
+            this.shard = shard;
+            this.purger = purger;
+            this.resumedFrom = resumedFrom;
+        }
+    }
+
+    /**
+     * Purge shards until all shards are done.
+     * Starts with the given shard, and continues with any shard which is neither done nor held by a live purger,
+     * waiting for the leases of other purgers to either finish or become stale. 
+     * @param firstShard The shard to start with
+     * @param purgerFactory The factory for the purgers used for the shards
+     * @return true if all shards are done, false if this purger stopped because the purge of a shard was aborted.
+     */
+    boolean purgeShards(Shard firstShard, PurgerFactory purgerFactory) throws IOException {
+        Shard shard = acquire(firstShard) ? firstShard : awaitShard();
+        while(shard != null) {
+            Checkpoint resumedFrom = readCheckpoint(shard);
+            if(resumedFrom.lines > 0) {
+                log.info("Resuming shard {} after line {} of the file list", shard, resumedFrom.lines);
+            }
+            ShardPurge shardPurge = new ShardPurge(shard, purgerFactory.createPurger(), resumedFrom);
+            activePurgers.put(shard.getName(), shardPurge);
+            boolean completed;
+            try {
+                completed = shardPurge.purger.purge(fileList, dryRun, shard, retryableOnly, resumedFrom.lines);
+            } finally {
+                activePurgers.remove(shard.getName());
+            }
+            if(!holdsLease(shard)) {
+                log.warn("Lost the lease on shard {} to another purger, leaving the shard to it", shard);
+            } else if(!completed) {
+                writeCheckpoint(shardPurge);
+                log.error("Purge of shard {} was aborted, leaving the shard to be claimed once the lease is stale", 
+                        shard);
+                heldLeases.remove(shard.getName());
+                return false;
+            } else {
+                List<String> results = new ArrayList<>();
+                results.add(Purger.REPORT_HEADER);
+                results.addAll(resumedFrom.results);
+                results.addAll(shardPurge.purger.formatResults(dryRun, Long.MAX_VALUE));
+                writeAtomically(getResultFile(shard), results);
+                markDone(shard);
+            }
+            shard = awaitShard();
+        }
+        return true;
+    }
+
+    /**
+     * Wait until a shard can be acquired, or all shards are done.
+     * @return The acquired shard, or null if all shards are done.
+     */
+    Shard awaitShard() throws IOException {
+        try {
+            while(!isAllDone()) {
+                Shard shard = acquireAny();
+                if(shard != null) {
+                    return shard;
+                }
+                Thread.sleep(pollIntervalMillis);
+            }
+            return null;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Try to acquire the lease on a shard.
+     * The lease can be acquired if the shard is not done and no other purger holds a live lease on it.
+     * @param shard The shard to acquire
+     * @return true if the lease was acquired
+     */
+    boolean acquire(Shard shard) throws IOException {
+        if(isDone(shard)) {
+            return false;
+        }
+        int generation = getLatestGeneration(shard.getName() + LEASE_SUFFIX);
+        if(generation >= 0) {
+            File currentLease = getLeaseFile(shard, generation);
+            long age = System.currentTimeMillis() - currentLease.lastModified();
+            if(age < leaseTimeoutMillis) {
+                return false;
+            }
+            log.warn("Lease '{}' has not been renewed for {} seconds, claiming shard {}", currentLease.getName(),
+                    TimeUnit.MILLISECONDS.toSeconds(age), shard);
+        }
+        return claim(shard, generation + 1);
+    }
+
+    /**
+     * Claim a shard by creating the lease file of the given generation.
+     * @param shard The shard to claim
+     * @param generation The generation of the lease to create
+     * @return true if the lease was created, false if another purger created it first.
+     */
+    boolean claim(Shard shard, int generation) throws IOException {
+        File lease = getLeaseFile(shard, generation);
+        try {
+            Files.createFile(lease.toPath());
+        } catch (FileAlreadyExistsException e) {
+            log.info("Shard {} was claimed by another purger", shard);
+            return false;
+        }
+        heldLeases.put(shard.getName(), lease);
+        log.info("Acquired lease '{}'", lease.getName());
+        return true;
+    }
+
+    /**
+     * Try to acquire the lease on any shard which is neither done nor held by a live purger.
+     * @return The acquired shard, or null if there is no shard to acquire.
+     */
+    Shard acquireAny() throws IOException {
+        for(int number = 1; number <= shardCount; number++) {
+            Shard shard = new Shard(number, shardCount);
+            if(acquire(shard)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determine if this purger still holds the lease on a shard, i.e. it has acquired the lease and no other
+     * purger has claimed a later generation.
+     * @param shard The shard
+     */
+    boolean holdsLease(Shard shard) {
+        File lease = heldLeases.get(shard.getName());
+        return lease != null && isLatestLease(shard.getName(), lease);
+    }
+
+    /**
+     * Mark a shard as done, and stop renewing the lease on it.
+     * The shard is only marked as done if this purger still holds the lease on it.
+     * @param shard The shard which is done
+     * @return true if the shard was marked as done
+     */
+    boolean markDone(Shard shard) throws IOException {
+        if(!holdsLease(shard)) {
+            log.warn("Not marking shard {} as done, as the lease is no longer held", shard);
+            heldLeases.remove(shard.getName());
+            return false;
+        }
+        try {
+            Files.createFile(getDoneFile(shard).toPath());
+        } catch (FileAlreadyExistsException e) {
+            log.warn("Shard {} was already marked as done", shard);
+        }
+        heldLeases.remove(shard.getName());
+        return true;
+    }
+
+    /**
+     * Get the file to write the results of a shard to.
+     * @param shard The shard
+     */
+    File getResultFile(Shard shard) {
+        return new File(leaseDir, shard.getName() + RESULTS_SUFFIX);
+    }
+
+    /**
+     * Merge the results of all the shards into a single result file, if all shards are done.
+     * Each result file is expected to start with the given header line, which is only included once
+     * in the merged result.
+     * @param header The header line of the result files
+     * @return The merged result file, or null if not all shards are done.
+     */
+    File mergeResultsIfDone(String header) throws IOException {
+        if(!isAllDone()) {
+            return null;
+        }
+        File mergedResults = new File(leaseDir, MERGED_RESULTS_NAME);
+        File tmpFile = File.createTempFile(MERGED_RESULTS_NAME, ".tmp", leaseDir);
+        try(BufferedWriter bw = new BufferedWriter(new FileWriter(tmpFile))) {
+            bw.write(header);
+            bw.newLine();
+            for(int number = 1; number <= shardCount; number++) {
+                File resultFile = getResultFile(new Shard(number, shardCount));
+                if(!resultFile.exists()) {
+                    continue;
+                }
+                try(BufferedReader br = new BufferedReader(new FileReader(resultFile))) {
+                    String line;
+                    while((line = br.readLine()) != null) {
+                        if(!line.equals(header)) {
+                            bw.write(line);
+                            bw.newLine();
+                        }
+                    }
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), mergedResults.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return mergedResults;
+    }
+
+    /**
+     * Stop renewing leases. Leases still held will become stale and can be claimed by other purgers.
+     */
+    void close() {
+        renewer.shutdownNow();
+    }
+
+    /**
+     * Check that the lease directory belongs to this purge. 
+     * The manifest of the purge is written if the directory has no manifest yet. 
+     * @throws IllegalStateException if the manifest in the directory does not match this purge
+     */
+    private void checkManifest() throws IOException {
+        Properties manifest = new Properties();
+        manifest.setProperty("filelist.name", fileList.getName());
+        manifest.setProperty("filelist.size", Long.toString(fileList.length()));
+        manifest.setProperty("filelist.sha256", calculateChecksum(fileList));
+        manifest.setProperty("shards", Integer.toString(shardCount));
+        manifest.setProperty("dryrun", Boolean.toString(dryRun));
+        manifest.setProperty("retryable", Boolean.toString(retryableOnly));
+
+        File manifestFile = new File(leaseDir, MANIFEST_NAME);
+        if(!manifestFile.exists()) {
+            File tmpFile = File.createTempFile(MANIFEST_NAME, ".tmp", leaseDir);
+            try(Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+                manifest.store(writer, "Manifest of the purge coordinated in this directory");
+            }
+            try {
+                Files.move(tmpFile.toPath(), manifestFile.toPath());
+            } catch (FileAlreadyExistsException e) {
+                log.debug("Manifest was written by another purger");
+                Files.delete(tmpFile.toPath());
+            }
+        }
+        Properties existingManifest = new Properties();
+        try(Reader reader = new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8)) {
+            existingManifest.load(reader);
+        }
+        if(!manifest.equals(existingManifest)) {
+            throw new IllegalStateException("Lease directory '" + leaseDir + "' belongs to another purge " 
+                    + existingManifest + ", this purge is " + manifest + ". Use a new lease directory");
+        }
+    }
+
+    /**
+     * Calculate the SHA-256 checksum of a file as a hex string
+     */
+    private static String calculateChecksum(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try(InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for(byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Renew the leases held. Leases which have been taken over by another purger are given up, and the purge
+     * of the shard is stopped.
+     */
+    private void renewLeases() {
+        long now = System.currentTimeMillis();
+        for(Map.Entry<String, File> entry : heldLeases.entrySet()) {
+            File lease = entry.getValue();
+            if(!isLatestLease(entry.getKey(), lease)) {
+                log.error("Lease '{}' was taken over by another purger, stopping work on the shard", lease.getName());
+                heldLeases.remove(entry.getKey());
+                ShardPurge shardPurge = activePurgers.get(entry.getKey());
+                if(shardPurge != null) {
+                    shardPurge.purger.stop();
+                }
+            } else {
+                if(!lease.setLastModified(now)) {
+                    log.warn("Failed to renew lease '{}'", lease.getName());
+                }
+                ShardPurge shardPurge = activePurgers.get(entry.getKey());
+                if(shardPurge != null) {
+                    try {
+                        writeCheckpoint(shardPurge);
+                    } catch (IOException e) {
+                        log.warn("Failed to write checkpoint for lease '{}'", lease.getName(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a checkpoint of the purge of a shard, if the lease on the shard is still held.
+     * The checkpoint is written for the generation of the lease held, so a purger which has lost its lease
+     * does not overwrite the checkpoints of the new holder.
+     */
+    private void writeCheckpoint(ShardPurge shardPurge) throws IOException {
+        String leasePrefix = shardPurge.shard.getName() + LEASE_SUFFIX;
+        File lease = heldLeases.get(shardPurge.shard.getName());
+        if(lease == null) {
+            return;
+        }
+        long lines = shardPurge.purger.getHandledLines();
+        List<String> checkpoint = new ArrayList<>();
+        checkpoint.add(CHECKPOINT_LINES_PREFIX + lines);
+        checkpoint.add(Purger.REPORT_HEADER);
+        checkpoint.addAll(shardPurge.resumedFrom.results);
+        checkpoint.addAll(shardPurge.purger.formatResults(dryRun, lines));
+        File checkpointFile = new File(leaseDir, shardPurge.shard.getName() + CHECKPOINT_SUFFIX 
+                + lease.getName().substring(leasePrefix.length()));
+        writeAtomically(checkpointFile, checkpoint);
+    }
+
+    /**
+     * Read the latest checkpoint of a shard.
+     * @return The latest checkpoint, or a checkpoint with no lines handled if there is none
+     */
+    private Checkpoint readCheckpoint(Shard shard) throws IOException {
+        String prefix = shard.getName() + CHECKPOINT_SUFFIX;
+        int generation = getLatestGeneration(prefix);
+        List<String> results = new ArrayList<>();
+        if(generation < 0) {
+            return new Checkpoint(0, results);
+        }
+        File checkpointFile = new File(leaseDir, prefix + generation);
+        try(BufferedReader br = new BufferedReader(new FileReader(checkpointFile))) {
+            String firstLine = br.readLine();
+            if(firstLine == null || !firstLine.startsWith(CHECKPOINT_LINES_PREFIX)) {
+                throw new IOException("Malformed checkpoint '" + checkpointFile + "'");
+            }
+            long lines = Long.parseLong(firstLine.substring(CHECKPOINT_LINES_PREFIX.length()));
+            String line;
+            while((line = br.readLine()) != null) {
+                if(!line.startsWith(Purger.COMMENT_PREFIX)) {
+                    results.add(line);
+                }
+            }
+            return new Checkpoint(lines, results);
+        }
+    }
+
+    /**
+     * Write lines to a file by writing a temporary file and moving it in place, so readers never see a partial file.
+     * @param file The file to write
+     * @param lines The lines of the file
+     */
+    private void writeAtomically(File file, List<String> lines) throws IOException {
+        File tmpFile = File.createTempFile("tmp-", ".tmp", leaseDir);
+        try(BufferedWriter bw = new BufferedWriter(new FileWriter(tmpFile))) {
+            for(String line : lines) {
+                bw.write(line);
+                bw.newLine();
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean isLatestLease(String shardName, File lease) {
+        String prefix = shardName + LEASE_SUFFIX;
+        return lease.exists() && lease.getName().equals(prefix + getLatestGeneration(prefix));
+    }
+
+    private boolean isDone(Shard shard) {
+        return getDoneFile(shard).exists();
+    }
+
+    private boolean isAllDone() {
+        for(int number = 1; number <= shardCount; number++) {
+            if(!isDone(new Shard(number, shardCount))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the latest generation of the files with the given prefix, e.g. the lease files for a shard.
+     * @param prefix The name of the files without the generation
+     * @return The latest generation, or -1 if there are no files with the prefix
+     */
+    private int getLatestGeneration(String prefix) {
+        int latest = -1;
+        String[] names = leaseDir.list();
+        if(names != null) {
+            for(String name : names) {
+                if(name.startsWith(prefix)) {
+                    try {
+                        latest = Math.max(latest, Integer.parseInt(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring unexpected file '{}' in lease directory", name);
+                    }
+                }
+            }
+        }
+        return latest;
+    }
+
+    private File getLeaseFile(Shard shard, int generation) {
+        return new File(leaseDir, shard.getName() + LEASE_SUFFIX + generation);
+    }
+
+    private File getDoneFile(Shard shard) {
+        return new File(leaseDir, shard.getName() + DONE_SUFFIX);
+    }
+}
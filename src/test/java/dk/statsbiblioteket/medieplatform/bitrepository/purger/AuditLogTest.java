@@ -0,0 +1,39 @@
+package dk.statsbiblioteket.medieplatform.bitrepository.purger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import dk.statsbiblioteket.medieplatform.bitrepository.purger.DeleteJob.JobStatus;
+
+public class AuditLogTest {
+
+    /**
+     * Tests that records are written in order, and that records arriving after the log is closed are counted
+     * as dropped instead of silently lost
+     */
+    @Test(groups = "regressionTest")
+    public void recordAfterCloseTest() throws Exception {
+        File auditFile = File.createTempFile("purger-audit", ".log");
+        auditFile.deleteOnExit();
+        AuditLog auditLog = new AuditLog(auditFile, 0);
+        for(int i = 0; i < 10; i++) {
+            auditLog.record(new DeleteJob("testfile" + i, "abab"), JobStatus.COMPLETED);
+        }
+        auditLog.close();
+        auditLog.record(new DeleteJob("latefile", "cdcd"), JobStatus.FAILED);
+        
+        List<String> lines = Files.readAllLines(auditFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(lines.size(), 10, "Only the records recorded before closing should be written");
+        for(int i = 0; i < 10; i++) {
+            assertTrue(lines.get(i).endsWith("\tCOMPLETED\ttestfile" + i + "\tabab"), lines.get(i));
+        }
+        assertEquals(auditLog.getDroppedRecords(), 1, "The record after closing should be counted as dropped");
+    }
+}
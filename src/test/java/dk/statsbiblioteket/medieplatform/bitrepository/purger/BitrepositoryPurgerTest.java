@@ -8,11 +8,21 @@ import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.assertEquals;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bitrepository.bitrepositoryelements.ChecksumDataForFileTYPE;
 import org.bitrepository.bitrepositoryelements.ChecksumSpecTYPE;
+import org.bitrepository.bitrepositoryelements.ResponseCode;
+import org.bitrepository.client.eventhandler.AbstractOperationEvent;
 import org.bitrepository.client.eventhandler.CompleteEvent;
+import org.bitrepository.client.eventhandler.ContributorFailedEvent;
 import org.bitrepository.client.eventhandler.EventHandler;
 import org.bitrepository.client.eventhandler.OperationEvent;
 import org.bitrepository.client.eventhandler.OperationFailedEvent;
@@ -39,7 +49,8 @@ public class BitrepositoryPurgerTest {
             public void deleteFile(String collectionID, String fileId, String pillarId, 
                     ChecksumDataForFileTYPE checksumForPillar, ChecksumSpecTYPE checksumRequested,
                     EventHandler eventHandler, String auditTrailInformation) {
-                OperationEvent event = new CompleteEvent(TEST_COLLECTION, null);
+                AbstractOperationEvent event = new CompleteEvent(TEST_COLLECTION, null);
+                event.setFileID(fileId);
                 eventHandler.handleEvent(event);
             }
         };
@@ -91,7 +102,8 @@ public class BitrepositoryPurgerTest {
             public void deleteFile(String collectionID, String fileId, String pillarId, 
                     ChecksumDataForFileTYPE checksumForPillar, ChecksumSpecTYPE checksumRequested,
                     EventHandler eventHandler, String auditTrailInformation) {
-                OperationEvent event = new OperationFailedEvent(TEST_COLLECTION, "Failed", null);
+                AbstractOperationEvent event = new OperationFailedEvent(TEST_COLLECTION, "Failed", null);
+                event.setFileID(fileId);
                 eventHandler.handleEvent(event);
             }
         };
@@ -137,4 +149,297 @@ public class BitrepositoryPurgerTest {
         assertEquals(reportedJobs.get(1).getFileID(), "testfile2");
         assertEquals(reportedJobs.get(1).getStatus(), JobStatus.TIMEOUT, "The JobStatus should be TIMEOUT");
     }
+    
+    /**
+     * Tests that the outcome of each delete is written to the audit log when the purge is done
+     */
+    @Test(groups = "regressionTest")
+    public void auditLogTest() throws Exception {
+        boolean PERFORM = false;
+        DeleteFileClient client = new DeleteFileClient() {
+            @Override
+            public void deleteFile(String collectionID, String fileId, String pillarId, 
+                    ChecksumDataForFileTYPE checksumForPillar, ChecksumSpecTYPE checksumRequested,
+                    EventHandler eventHandler, String auditTrailInformation) {
+                AbstractOperationEvent event = new OperationFailedEvent(TEST_COLLECTION, "Failed", null);
+                event.setFileID(fileId);
+                eventHandler.handleEvent(event);
+            }
+        };
+        File auditFile = File.createTempFile("purger-audit", ".log");
+        auditFile.deleteOnExit();
+        Purger purger = new Purger(client, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 8, 3600, 
+                new AuditLog(auditFile, 0), new CircuitBreaker());
+        File testFile = new File("src/test/resources/small-test-input-file");
+        
+        purger.purge(testFile, PERFORM);
+        
+        List<String> lines = Files.readAllLines(auditFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(lines.size(), 2, "Both DeleteJobs should be recorded in the audit log");
+        assertTrue(lines.get(0).endsWith("\tFAILED\ttestfile1\tabab\tUNKNOWN"), "Unexpected audit record: " + lines.get(0));
+        assertTrue(lines.get(1).endsWith("\tFAILED\ttestfile2\tcdcd\tUNKNOWN"), "Unexpected audit record: " + lines.get(1));
+    }
+    
+    /**
+     * Tests that dispatch resumes after a successful probe, when the pillar recovers after the circuit breaker tripped
+     */
+    @Test(groups = "regressionTest")
+    public void circuitBreakerProbeResumeTest() throws Exception {
+        boolean PERFORM = false;
+        final AtomicInteger deleteCount = new AtomicInteger();
+        DeleteFileClient client = new DeleteFileClient() {
+            @Override
+            public void deleteFile(String collectionID, String fileId, String pillarId, 
+                    ChecksumDataForFileTYPE checksumForPillar, ChecksumSpecTYPE checksumRequested,
+                    EventHandler eventHandler, String auditTrailInformation) {
+                AbstractOperationEvent event;
+                if(deleteCount.incrementAndGet() == 1) {
+                    event = new OperationFailedEvent(TEST_COLLECTION, "Failed", null);
+                } else {
+                    event = new CompleteEvent(TEST_COLLECTION, null);
+                }
+                event.setFileID(fileId);
+                eventHandler.handleEvent(event);
+            }
+        };
+        File testFile = File.createTempFile("purger-input", ".txt");
+        testFile.deleteOnExit();
+        Files.copy(new File("src/test/resources/small-test-input-file").toPath(), testFile.toPath(), 
+                StandardCopyOption.REPLACE_EXISTING);
+        Purger purger = spy(new Purger(client, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 8, 3600, 
+                new AuditLog(), new CircuitBreaker(10, 0, 1, 1, 60)));
+        
+        purger.purge(testFile, PERFORM);
+        
+        assertEquals(deleteCount.get(), 2, "The second file should be sent as probe once the probe interval passed");
+        ArgumentCaptor<List> arguments = ArgumentCaptor.forClass(List.class);
+        verify(purger).reportResults(arguments.capture());
+        List<DeleteJob> reportedJobs =  (List<DeleteJob>) arguments.getAllValues().get(0);
+        assertEquals(reportedJobs.size(), 1, "Only the DeleteJob which tripped the circuit breaker should fail");
+        assertEquals(reportedJobs.get(0).getFileID(), "testfile1");
+        assertTrue(!Purger.getRemainderFile(testFile, Shard.ALL).exists(), "The purge should not be aborted");
+    }
+    
+    /**
+     * Tests that the purge is aborted when the circuit breaker trips, and that the unprocessed files are written
+     * to the remainder file
+     */
+    @Test(groups = "regressionTest")
+    public void circuitBreakerAbortTest() throws Exception {
+        boolean PERFORM = false;
+        final AtomicInteger deleteCount = new AtomicInteger();
+        DeleteFileClient client = new DeleteFileClient() {
+            @Override
+            public void deleteFile(String collectionID, String fileId, String pillarId, 
+                    ChecksumDataForFileTYPE checksumForPillar, ChecksumSpecTYPE checksumRequested,
+                    EventHandler eventHandler, String auditTrailInformation) {
+                deleteCount.incrementAndGet();
+                AbstractOperationEvent event = new OperationFailedEvent(TEST_COLLECTION, "Failed", null);
+                event.setFileID(fileId);
+                eventHandler.handleEvent(event);
+            }
+        };
+        File testFile = File.createTempFile("purger-input", ".txt");
+        testFile.deleteOnExit();
+        Files.copy(new File("src/test/resources/small-test-input-file").toPath(), testFile.toPath(), 
+                StandardCopyOption.REPLACE_EXISTING);
+        File remainderFile = Purger.getRemainderFile(testFile, Shard.ALL);
+        remainderFile.deleteOnExit();
+        Purger purger = spy(new Purger(client, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 1, 3600, 
+                new AuditLog(), new CircuitBreaker(10, 0, 1, 1, 0)));
+        
+        purger.purge(testFile, PERFORM);
+        
+        assertEquals(deleteCount.get(), 1, "No deletes should be sent after the circuit breaker tripped");
+        ArgumentCaptor<List> arguments = ArgumentCaptor.forClass(List.class);
+        verify(purger).reportResults(arguments.capture());
+        List<DeleteJob> reportedJobs =  (List<DeleteJob>) arguments.getAllValues().get(0);
+        assertEquals(reportedJobs.size(), 1, "Only the DeleteJob sent before the circuit breaker tripped should fail");
+        assertEquals(reportedJobs.get(0).getFileID(), "testfile1");
+        List<String> remainder = Files.readAllLines(remainderFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(remainder.size(), 1, "The file not sent should be written to the remainder file");
+        assertEquals(remainder.get(0), "testfile2\tcdcd");
+    }
+    
+    /**
+     * Tests that the shards of a file list together cover every file exactly once
+     */
+    @Test(groups = "regressionTest")
+    public void shardedDryrunTest() {
+        boolean DRYRUN = true;
+        DeleteFileClient client = mock(DeleteFileClient.class);
+        File testFile = new File("src/test/resources/small-test-input-file");
+        int SHARDS = 3;
+        
+        List<String> reportedFileIDs = new ArrayList<>();
+        for(int number = 1; number <= SHARDS; number++) {
+            Purger purger = spy(new Purger(client, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 8, 3600));
+            purger.purge(testFile, DRYRUN, new Shard(number, SHARDS));
+            
+            ArgumentCaptor<List> arguments = ArgumentCaptor.forClass(List.class);
+            verify(purger).reportResults(arguments.capture());
+            for(DeleteJob job : (List<DeleteJob>) arguments.getAllValues().get(0)) {
+                assertTrue(new Shard(number, SHARDS).contains(job.getFileID()), 
+                        job.getFileID() + " should not be reported in shard " + number);
+                reportedFileIDs.add(job.getFileID());
+            }
+        }
+        Collections.sort(reportedFileIDs);
+        assertEquals(reportedFileIDs, Arrays.asList("testfile1", "testfile2"), 
+                "Every file should be reported in exactly one shard");
+        verifyNoMoreInteractions(client);
+    }
+    
+    /**
+     * Tests that the cause of failures reported by the bitrepository client is classified
+     */
+    @Test(groups = "regressionTest")
+    public void failureClassificationTest() {
+        boolean PERFORM = false;
+        DeleteFileClient client = new DeleteFileClient() {
+            @Override
+            public void deleteFile(String collectionID, String fileId, String pillarId, 
+                    ChecksumDataForFileTYPE checksumForPillar, ChecksumSpecTYPE checksumRequested,
+                    EventHandler eventHandler, String auditTrailInformation) {
+                AbstractOperationEvent event;
+                if(fileId.equals("testfile1")) {
+                    AbstractOperationEvent componentFailed = new ContributorFailedEvent(TEST_PILLAR_ID, 
+                            TEST_COLLECTION, ResponseCode.EXISTING_FILE_CHECKSUM_FAILURE);
+                    componentFailed.setInfo("Checksum mismatch");
+                    componentFailed.setFileID(fileId);
+                    eventHandler.handleEvent(componentFailed);
+                    event = new OperationFailedEvent(TEST_COLLECTION, "Failed", null);
+                } else {
+                    event = new OperationFailedEvent(TEST_COLLECTION, "Time has run out for delete", null);
+                }
+                event.setFileID(fileId);
+                eventHandler.handleEvent(event);
+            }
+        };
+        Purger purger = spy(new Purger(client, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 1, 3600));
+        File testFile = new File("src/test/resources/small-test-input-file");
+        
+        purger.purge(testFile, PERFORM);
+        
+        ArgumentCaptor<List> arguments = ArgumentCaptor.forClass(List.class);
+        verify(purger).reportResults(arguments.capture());
+        List<DeleteJob> reportedJobs =  (List<DeleteJob>) arguments.getAllValues().get(0);
+        assertEquals(reportedJobs.size(), 2, "Two DeleteJobs should be reported as the bitrepository client reports failures");
+        assertEquals(reportedJobs.get(0).getFailureType(), FailureType.CHECKSUM_MISMATCH, 
+                "The failure should be classified from the response code of the pillar");
+        assertEquals(reportedJobs.get(0).getFailureInfo(), "Checksum mismatch; Failed");
+        assertEquals(reportedJobs.get(1).getFailureType(), FailureType.TIMEOUT, 
+                "The timeout of the bitrepository client should be classified as a timeout");
+    }
+    
+    /**
+     * Tests that events are only applied to the job of the file they are for, when several deletes are running,
+     * and that events for files without an active job are ignored
+     */
+    @Test(groups = "regressionTest")
+    public void concurrentJobsTest() {
+        boolean PERFORM = false;
+        final List<String> fileIDs = new ArrayList<>();
+        final List<EventHandler> eventHandlers = new ArrayList<>();
+        DeleteFileClient client = new DeleteFileClient() {
+            @Override
+            public void deleteFile(String collectionID, String fileId, String pillarId, 
+                    ChecksumDataForFileTYPE checksumForPillar, ChecksumSpecTYPE checksumRequested,
+                    EventHandler eventHandler, String auditTrailInformation) {
+                fileIDs.add(fileId);
+                eventHandlers.add(eventHandler);
+                if(fileIDs.size() < 2) {
+                    return;
+                }
+                AbstractOperationEvent unknownFile = new OperationFailedEvent(TEST_COLLECTION, "Failed", null);
+                unknownFile.setFileID("unknown-file");
+                eventHandlers.get(0).handleEvent(unknownFile);
+                AbstractOperationEvent componentFailed = new ContributorFailedEvent(TEST_PILLAR_ID, TEST_COLLECTION, 
+                        ResponseCode.FILE_NOT_FOUND_FAILURE);
+                componentFailed.setFileID(fileIDs.get(1));
+                eventHandlers.get(1).handleEvent(componentFailed);
+                AbstractOperationEvent failed = new OperationFailedEvent(TEST_COLLECTION, "Failed", null);
+                failed.setFileID(fileIDs.get(1));
+                eventHandlers.get(1).handleEvent(failed);
+                AbstractOperationEvent complete = new CompleteEvent(TEST_COLLECTION, null);
+                complete.setFileID(fileIDs.get(0));
+                eventHandlers.get(0).handleEvent(complete);
+            }
+        };
+        Purger purger = spy(new Purger(client, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 8, 3600));
+        File testFile = new File("src/test/resources/small-test-input-file");
+        
+        purger.purge(testFile, PERFORM);
+        
+        ArgumentCaptor<List> arguments = ArgumentCaptor.forClass(List.class);
+        verify(purger).reportResults(arguments.capture());
+        List<DeleteJob> reportedJobs =  (List<DeleteJob>) arguments.getAllValues().get(0);
+        assertEquals(reportedJobs.size(), 1, "Only the DeleteJob failed by the bitrepository client should be reported");
+        assertEquals(reportedJobs.get(0).getFileID(), "testfile2");
+        assertEquals(reportedJobs.get(0).getStatus(), JobStatus.FAILED, "The JobStatus should be FAILED");
+        assertEquals(reportedJobs.get(0).getFailureType(), FailureType.FILE_NOT_FOUND);
+    }
+    
+    /**
+     * Tests that lines are only counted as handled when the deletes of all files up to them have finished, 
+     * so a resumed purge does not miss a delete which was still running
+     */
+    @Test(groups = "regressionTest")
+    public void handledLinesTest() {
+        boolean PERFORM = false;
+        final List<Long> handledLines = new ArrayList<>();
+        final List<AbstractOperationEvent> heldEvents = new ArrayList<>();
+        final List<EventHandler> heldHandlers = new ArrayList<>();
+        final Purger[] purger = new Purger[1];
+        DeleteFileClient client = new DeleteFileClient() {
+            @Override
+            public void deleteFile(String collectionID, String fileId, String pillarId, 
+                    ChecksumDataForFileTYPE checksumForPillar, ChecksumSpecTYPE checksumRequested,
+                    EventHandler eventHandler, String auditTrailInformation) {
+                AbstractOperationEvent event = new CompleteEvent(TEST_COLLECTION, null);
+                event.setFileID(fileId);
+                if(heldEvents.isEmpty()) {
+                    heldEvents.add(event);
+                    heldHandlers.add(eventHandler);
+                    return;
+                }
+                eventHandler.handleEvent(event);
+                handledLines.add(purger[0].getHandledLines());
+                heldHandlers.get(0).handleEvent(heldEvents.get(0));
+                handledLines.add(purger[0].getHandledLines());
+            }
+        };
+        purger[0] = new Purger(client, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 8, 3600);
+        File testFile = new File("src/test/resources/small-test-input-file");
+        
+        assertTrue(purger[0].purge(testFile, PERFORM, Shard.ALL));
+        
+        assertEquals(handledLines, Arrays.asList(0L, 1L), 
+                "The first line should only be handled when its delete has finished");
+        assertEquals(purger[0].getHandledLines(), 2L, "All lines should be handled when the purge is done");
+    }
+    
+    /**
+     * Tests that reported results can be used as input, and that files which failed for a reason 
+     * which is not retryable are skipped when only retryable files are requested
+     */
+    @Test(groups = "regressionTest")
+    public void retryableOnlyDryrunTest() {
+        boolean DRYRUN = true;
+        DeleteFileClient client = mock(DeleteFileClient.class);
+        
+        Purger purger = spy(new Purger(client, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 8, 3600));
+        File testFile = new File("src/test/resources/small-test-failed-results-file");
+        
+        purger.purge(testFile, DRYRUN, Shard.ALL, true);
+        
+        ArgumentCaptor<List> arguments = ArgumentCaptor.forClass(List.class);
+        verify(purger).reportResults(arguments.capture());
+        List<DeleteJob> reportedJobs =  (List<DeleteJob>) arguments.getAllValues().get(0);
+        assertEquals(reportedJobs.size(), 1, "Only the DeleteJob which failed with a timeout should be retried");
+        assertEquals(reportedJobs.get(0).getFileID(), "testfile2");
+        assertEquals(reportedJobs.get(0).getChecksum(), "cdcd");
+        
+        verifyNoMoreInteractions(client);
+    }
 }
@@ -0,0 +1,135 @@
+package dk.statsbiblioteket.medieplatform.bitrepository.purger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.Test;
+
+import dk.statsbiblioteket.medieplatform.bitrepository.purger.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+    /**
+     * Tests that the breaker trips after the configured number of consecutive failures
+     */
+    @Test(groups = "regressionTest")
+    public void consecutiveFailuresTripTest() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 0, 3, 60, 3600);
+        breaker.recordFailure("file1");
+        breaker.recordFailure("file2");
+        breaker.recordSuccess("file3");
+        breaker.recordFailure("file4");
+        breaker.recordFailure("file5");
+        assertEquals(breaker.getState(), State.CLOSED, "A success should reset the consecutive failures");
+        breaker.recordFailure("file6");
+        assertEquals(breaker.getState(), State.OPEN, "Three consecutive failures should trip the breaker");
+    }
+
+    /**
+     * Tests that the breaker trips when the failure rate of a full window reaches the threshold
+     */
+    @Test(groups = "regressionTest")
+    public void failureRateTripTest() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 50, 0, 60, 3600);
+        breaker.recordFailure("file1");
+        breaker.recordSuccess("file2");
+        breaker.recordSuccess("file3");
+        assertEquals(breaker.getState(), State.CLOSED, "The failure rate should not be used before the window is full");
+        breaker.recordFailure("file4");
+        assertEquals(breaker.getState(), State.OPEN, "Two failures out of four should trip the breaker");
+    }
+
+    /**
+     * Tests that a successful probe closes the breaker, and that outcomes of other deletes do not
+     */
+    @Test(groups = "regressionTest")
+    public void probeSuccessResumesTest() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 0, 1, 1, 60);
+        breaker.recordFailure("file1");
+        assertEquals(breaker.getState(), State.OPEN);
+
+        assertTrue(breaker.awaitPermission("probe"), "A probe should be allowed after the probe interval");
+        assertEquals(breaker.getState(), State.HALF_OPEN);
+        breaker.recordSuccess("inflight1");
+        breaker.recordFailure("inflight2");
+        assertEquals(breaker.getState(), State.HALF_OPEN, "Deletes other than the probe should not change the state");
+
+        breaker.recordSuccess("probe");
+        assertEquals(breaker.getState(), State.CLOSED, "A successful probe should close the breaker");
+        assertTrue(breaker.awaitPermission("file2"));
+    }
+
+    /**
+     * Tests that a failed probe opens the breaker again, and that a later probe can close it
+     */
+    @Test(groups = "regressionTest")
+    public void probeFailureReopensTest() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 0, 1, 1, 60);
+        breaker.recordFailure("file1");
+
+        assertTrue(breaker.awaitPermission("probe1"));
+        breaker.recordFailure("probe1");
+        assertEquals(breaker.getState(), State.OPEN, "A failed probe should open the breaker again");
+
+        long start = System.currentTimeMillis();
+        assertTrue(breaker.awaitPermission("probe2"));
+        assertTrue(System.currentTimeMillis() - start >= 900, "The next probe should wait for the probe interval");
+        assertEquals(breaker.getState(), State.HALF_OPEN);
+        breaker.recordSuccess("probe2");
+        assertEquals(breaker.getState(), State.CLOSED);
+    }
+
+    /**
+     * Tests that permission is refused when the breaker has been open for longer than the maximum open time
+     */
+    @Test(groups = "regressionTest")
+    public void maxOpenTimeAbortTest() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 0, 1, 60, 1);
+        breaker.recordFailure("file1");
+        assertFalse(breaker.awaitPermission("file2"), "Permission should be refused after the maximum open time");
+    }
+
+    /**
+     * Tests that cancelling the breaker wakes a thread waiting for permission, and refuses further permissions
+     */
+    @Test(groups = "regressionTest")
+    public void cancelWakesWaiterTest() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 0, 1, 60, 3600);
+        breaker.recordFailure("file1");
+        final AtomicBoolean permission = new AtomicBoolean(true);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                permission.set(breaker.awaitPermission("file2"));
+            }
+        });
+        waiter.start();
+        Thread.sleep(200);
+        assertTrue(waiter.isAlive(), "The waiter should be blocked while the breaker is open");
+
+        breaker.cancel();
+        waiter.join(5000);
+        assertFalse(waiter.isAlive(), "Cancelling should wake the waiter");
+        assertFalse(permission.get(), "A cancelled breaker should refuse permission");
+
+        CircuitBreaker closedBreaker = new CircuitBreaker();
+        closedBreaker.cancel();
+        assertFalse(closedBreaker.awaitPermission("file3"), "A cancelled breaker should refuse permission when closed");
+    }
+
+    /**
+     * Tests that the default circuit breaker never trips
+     */
+    @Test(groups = "regressionTest")
+    public void disabledBreakerTest() {
+        CircuitBreaker breaker = new CircuitBreaker();
+        for(int i = 0; i < 100; i++) {
+            breaker.recordFailure("file" + i);
+        }
+        assertEquals(breaker.getState(), State.CLOSED);
+        assertTrue(breaker.awaitPermission("file"));
+    }
+}
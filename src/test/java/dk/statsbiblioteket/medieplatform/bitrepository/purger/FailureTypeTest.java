@@ -0,0 +1,51 @@
+package dk.statsbiblioteket.medieplatform.bitrepository.purger;
+
+import static org.testng.Assert.assertEquals;
+
+import org.bitrepository.bitrepositoryelements.ResponseCode;
+import org.testng.annotations.Test;
+
+public class FailureTypeTest {
+
+    /**
+     * Tests that failures are classified from the response code reported by the pillar and the timeouts of the 
+     * bitrepository client, and that free text mentioning checksums, missing files or timeouts is not mistaken 
+     * for those causes
+     */
+    @Test(groups = "regressionTest")
+    public void classifyTest() {
+        Object[][] cases = {
+            {ResponseCode.EXISTING_FILE_CHECKSUM_FAILURE, null, FailureType.CHECKSUM_MISMATCH},
+            {ResponseCode.EXISTING_FILE_CHECKSUM_FAILURE, "Checksum mismatch; Failed", FailureType.CHECKSUM_MISMATCH},
+            {ResponseCode.FILE_NOT_FOUND_FAILURE, "No such file", FailureType.FILE_NOT_FOUND},
+            {ResponseCode.FAILURE, "File not found", FailureType.UNKNOWN},
+            {ResponseCode.NEW_FILE_CHECKSUM_FAILURE, null, FailureType.UNKNOWN},
+            {ResponseCode.REQUEST_NOT_SUPPORTED, "Time has run out for delete", FailureType.TIMEOUT},
+            {null, "Time has run out for delete", FailureType.TIMEOUT},
+            {null, "Time has run out for identifying contributors", FailureType.TIMEOUT},
+            {null, "timeout while calculating checksum", FailureType.UNKNOWN},
+            {null, "collection not found", FailureType.UNKNOWN},
+            {null, "pillar not found", FailureType.UNKNOWN},
+            {null, "EXISTING_FILE_CHECKSUM_FAILURE", FailureType.UNKNOWN},
+            {null, "FILE_NOT_FOUND_FAILURE", FailureType.UNKNOWN},
+            {null, "", FailureType.UNKNOWN},
+            {null, null, FailureType.UNKNOWN},
+        };
+        for(Object[] testCase : cases) {
+            assertEquals(FailureType.classify((ResponseCode) testCase[0], (String) testCase[1]), testCase[2], 
+                    "Classifying " + testCase[0] + " '" + testCase[1] + "'");
+        }
+    }
+
+    /**
+     * Tests that failure types are found by name, as used when reading reported results
+     */
+    @Test(groups = "regressionTest")
+    public void fromNameTest() {
+        for(FailureType type : FailureType.values()) {
+            assertEquals(FailureType.fromName(type.name()), type);
+        }
+        assertEquals(FailureType.fromName("checksum_mismatch"), null);
+        assertEquals(FailureType.fromName("-"), null);
+    }
+}
@@ -0,0 +1,394 @@
+package dk.statsbiblioteket.medieplatform.bitrepository.purger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bitrepository.bitrepositoryelements.ChecksumDataForFileTYPE;
+import org.bitrepository.bitrepositoryelements.ChecksumSpecTYPE;
+import org.bitrepository.client.eventhandler.AbstractOperationEvent;
+import org.bitrepository.client.eventhandler.CompleteEvent;
+import org.bitrepository.client.eventhandler.EventHandler;
+import org.bitrepository.client.eventhandler.OperationFailedEvent;
+import org.bitrepository.modify.deletefile.DeleteFileClient;
+import org.testng.annotations.Test;
+
+public class ShardCoordinatorTest {
+
+    final String TEST_COLLECTION = "test-collection";
+    final String TEST_PILLAR_ID = "test-pillar";
+    final File TEST_FILE = new File("src/test/resources/small-test-input-file");
+
+    /**
+     * Tests that a shard can be acquired, and that a live lease cannot be acquired by another purger
+     */
+    @Test(groups = "regressionTest")
+    public void acquireTest() throws IOException {
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        ShardCoordinator first = createCoordinator(leaseDir, 2, 300);
+        ShardCoordinator second = createCoordinator(leaseDir, 2, 300);
+        try {
+            Shard shard = new Shard(1, 2);
+            assertTrue(first.acquire(shard));
+            assertTrue(new File(leaseDir, "shard-1-of-2.lease.0").exists());
+            assertTrue(first.holdsLease(shard));
+
+            assertFalse(second.acquire(shard), "A live lease should not be acquired by another purger");
+            assertEquals(second.acquireAny().getNumber(), 2);
+            assertNull(second.acquireAny(), "No shards should be left to acquire");
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    /**
+     * Tests that a stale lease is taken over, and that the previous holder can no longer mark the shard as done
+     */
+    @Test(groups = "regressionTest")
+    public void staleLeaseTakeoverTest() throws IOException {
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        ShardCoordinator first = createCoordinator(leaseDir, 1, 300);
+        ShardCoordinator second = createCoordinator(leaseDir, 1, 300);
+        try {
+            assertTrue(first.acquire(Shard.ALL));
+            File lease = new File(leaseDir, "shard-1-of-1.lease.0");
+            lease.setLastModified(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(600));
+
+            assertTrue(second.acquire(Shard.ALL), "A stale lease should be taken over");
+            assertTrue(new File(leaseDir, "shard-1-of-1.lease.1").exists());
+            assertTrue(second.holdsLease(Shard.ALL));
+            assertFalse(first.holdsLease(Shard.ALL), "The lease should be lost once a later generation is claimed");
+
+            assertFalse(first.markDone(Shard.ALL), "A lost lease should not allow marking the shard as done");
+            assertFalse(new File(leaseDir, "shard-1-of-1.done").exists());
+            assertTrue(second.markDone(Shard.ALL));
+            assertTrue(new File(leaseDir, "shard-1-of-1.done").exists());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    /**
+     * Tests that only one purger can claim a given generation of a lease
+     */
+    @Test(groups = "regressionTest")
+    public void claimRaceTest() throws IOException {
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        ShardCoordinator first = createCoordinator(leaseDir, 1, 300);
+        ShardCoordinator second = createCoordinator(leaseDir, 1, 300);
+        try {
+            assertTrue(first.claim(Shard.ALL, 0));
+            assertFalse(second.claim(Shard.ALL, 0), "An existing lease file should not be claimed again");
+            assertTrue(first.holdsLease(Shard.ALL));
+            assertFalse(second.holdsLease(Shard.ALL));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    /**
+     * Tests that a shard which is done cannot be acquired
+     */
+    @Test(groups = "regressionTest")
+    public void markDoneTest() throws IOException {
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        ShardCoordinator first = createCoordinator(leaseDir, 2, 300);
+        ShardCoordinator second = createCoordinator(leaseDir, 2, 300);
+        try {
+            Shard shard = new Shard(1, 2);
+            assertTrue(first.acquire(shard));
+            assertTrue(first.markDone(shard));
+            assertTrue(new File(leaseDir, "shard-1-of-2.done").exists());
+            assertFalse(first.holdsLease(shard), "The lease should not be held after the shard is done");
+
+            new File(leaseDir, "shard-1-of-2.lease.0").setLastModified(0);
+            assertFalse(second.acquire(shard), "A shard which is done should not be acquired");
+            assertEquals(second.acquireAny().getNumber(), 2);
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    /**
+     * Tests that the results are only merged when all shards are done, that the header is only written once,
+     * and that missing result files are skipped
+     */
+    @Test(groups = "regressionTest")
+    public void mergeResultsTest() throws IOException {
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        ShardCoordinator coordinator = createCoordinator(leaseDir, 3, 300);
+        try {
+            Shard shard1 = new Shard(1, 3);
+            Shard shard2 = new Shard(2, 3);
+            Shard shard3 = new Shard(3, 3);
+            Files.write(coordinator.getResultFile(shard1).toPath(),
+                    Arrays.asList(Purger.REPORT_HEADER, "file1\taaaa\tFAILED\tTIMEOUT\t-"), StandardCharsets.UTF_8);
+            Files.write(coordinator.getResultFile(shard3).toPath(),
+                    Arrays.asList(Purger.REPORT_HEADER, "file3\tcccc\tFAILED\tUNKNOWN\t-"), StandardCharsets.UTF_8);
+            for(Shard shard : Arrays.asList(shard1, shard2)) {
+                assertTrue(coordinator.acquire(shard));
+                assertTrue(coordinator.markDone(shard));
+            }
+            assertNull(coordinator.mergeResultsIfDone(Purger.REPORT_HEADER),
+                    "Results should not be merged before all shards are done");
+
+            assertTrue(coordinator.acquire(shard3));
+            assertTrue(coordinator.markDone(shard3));
+            File merged = coordinator.mergeResultsIfDone(Purger.REPORT_HEADER);
+            List<String> lines = Files.readAllLines(merged.toPath(), StandardCharsets.UTF_8);
+            assertEquals(lines, Arrays.asList(Purger.REPORT_HEADER, "file1\taaaa\tFAILED\tTIMEOUT\t-",
+                    "file3\tcccc\tFAILED\tUNKNOWN\t-"));
+        } finally {
+            coordinator.close();
+        }
+    }
+
+    /**
+     * Tests that an aborted purge leaves the shard neither done nor held, so it can be claimed later
+     */
+    @Test(groups = "regressionTest")
+    public void abortedShardNotDoneTest() throws IOException {
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        ShardCoordinator coordinator = createCoordinator(leaseDir, 1, 300);
+        try {
+            ShardCoordinator.PurgerFactory factory = new ShardCoordinator.PurgerFactory() {
+                @Override
+                public Purger createPurger() {
+                    return new Purger(null, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 1, 3600) {
+                        @Override
+                        public boolean purge(File fileList, boolean dryRun, Shard shard, boolean retryableOnly, 
+                                long startLine) {
+                            return false;
+                        }
+                    };
+                }
+            };
+            assertFalse(coordinator.purgeShards(Shard.ALL, factory));
+            assertFalse(new File(leaseDir, "shard-1-of-1.done").exists(), "An aborted shard should not be done");
+            assertFalse(coordinator.getResultFile(Shard.ALL).exists());
+            assertFalse(coordinator.holdsLease(Shard.ALL), "The lease should be released when the purge is aborted");
+            assertNull(coordinator.mergeResultsIfDone(Purger.REPORT_HEADER));
+        } finally {
+            coordinator.close();
+        }
+    }
+
+    /**
+     * Tests that a purger keeps polling for shards, and claims the shard of a dead purger once its lease is stale
+     */
+    @Test(groups = "regressionTest")
+    public void abandonedShardClaimedTest() throws IOException {
+        boolean DRYRUN = true;
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        File dryRunDir = new File(leaseDir, "dryrun");
+        ShardCoordinator dead = new ShardCoordinator(leaseDir, 2, 1, TEST_FILE, DRYRUN, false);
+        dead.close();
+        assertTrue(dead.claim(new Shard(2, 2), 0));
+
+        ShardCoordinator coordinator = new ShardCoordinator(leaseDir, 2, 1, TEST_FILE, DRYRUN, false);
+        try {
+            ShardCoordinator.PurgerFactory factory = new ShardCoordinator.PurgerFactory() {
+                @Override
+                public Purger createPurger() {
+                    return new Purger(null, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 1, 3600);
+                }
+            };
+            assertTrue(coordinator.purgeShards(new Shard(1, 2), factory));
+            assertTrue(new File(dryRunDir, "shard-2-of-2.lease.1").exists(), "The abandoned shard should be claimed");
+            assertTrue(new File(dryRunDir, "shard-1-of-2.done").exists());
+            assertTrue(new File(dryRunDir, "shard-2-of-2.done").exists());
+
+            File merged = coordinator.mergeResultsIfDone(Purger.REPORT_HEADER);
+            List<String> lines = Files.readAllLines(merged.toPath(), StandardCharsets.UTF_8);
+            assertEquals(lines.size(), 3, "Both files of the file list should be in the merged results");
+        } finally {
+            coordinator.close();
+        }
+    }
+
+    /**
+     * Tests that a purge is stopped when the lease is taken over, and that the results and done file are
+     * left to the new holder of the lease
+     */
+    @Test(groups = "regressionTest")
+    public void lostLeaseStopsPurgeTest() throws IOException {
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        final ShardCoordinator other = createCoordinator(leaseDir, 1, 1);
+        ShardCoordinator coordinator = createCoordinator(leaseDir, 1, 1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        try {
+            ShardCoordinator.PurgerFactory factory = new ShardCoordinator.PurgerFactory() {
+                @Override
+                public Purger createPurger() {
+                    return new Purger(null, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 1, 3600) {
+                        @Override
+                        public boolean purge(File fileList, boolean dryRun, Shard shard, boolean retryableOnly, 
+                                long startLine) {
+                            try {
+                                other.claim(shard, 1);
+                                stopped.await(10, TimeUnit.SECONDS);
+                                other.markDone(shard);
+                                return false;
+                            } catch (IOException | InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+
+                        @Override
+                        void stop() {
+                            stopped.countDown();
+                        }
+                    };
+                }
+            };
+            assertTrue(coordinator.purgeShards(Shard.ALL, factory));
+            assertEquals(stopped.getCount(), 0L, "The purge should be stopped when the lease is taken over");
+            assertFalse(coordinator.getResultFile(Shard.ALL).exists(),
+                    "Results should not be written after the lease is lost");
+        } finally {
+            coordinator.close();
+            other.close();
+        }
+    }
+
+    /**
+     * Tests that a dry run does not mark shards as done for a later purge using the same lease directory
+     */
+    @Test(groups = "regressionTest")
+    public void dryRunNamespaceTest() throws IOException {
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        ShardCoordinator dryRun = new ShardCoordinator(leaseDir, 1, 300, TEST_FILE, true, false);
+        try {
+            assertTrue(dryRun.acquire(Shard.ALL));
+            assertTrue(dryRun.markDone(Shard.ALL));
+            assertTrue(new File(leaseDir, "dryrun/shard-1-of-1.done").exists());
+        } finally {
+            dryRun.close();
+        }
+
+        ShardCoordinator coordinator = createCoordinator(leaseDir, 1, 300);
+        try {
+            assertNull(coordinator.mergeResultsIfDone(Purger.REPORT_HEADER), 
+                    "The shards of the dry run should not be done for the purge");
+            assertTrue(coordinator.acquire(Shard.ALL), "The purge should acquire the shard done in the dry run");
+        } finally {
+            coordinator.close();
+        }
+    }
+
+    /**
+     * Tests that a lease directory is refused for a purge of another file list, or with other options
+     */
+    @Test(groups = "regressionTest")
+    public void manifestMismatchTest() throws IOException {
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        createCoordinator(leaseDir, 2, 300).close();
+        createCoordinator(leaseDir, 2, 300).close();
+
+        File otherFile = new File("src/test/resources/small-test-failed-results-file");
+        Object[][] mismatches = {
+            {otherFile, 2, false},
+            {TEST_FILE, 3, false},
+            {TEST_FILE, 2, true},
+        };
+        for(Object[] mismatch : mismatches) {
+            try {
+                new ShardCoordinator(leaseDir, (Integer) mismatch[1], 300, (File) mismatch[0], false, 
+                        (Boolean) mismatch[2]).close();
+                fail("The lease directory should be refused for " + Arrays.toString(mismatch));
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains("Use a new lease directory"), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Tests that a purger claiming a shard resumes after the checkpoint of the previous holder of the lease, 
+     * instead of sending the deletes handled by it again, and that the results of both are reported
+     */
+    @Test(groups = "regressionTest")
+    public void resumeFromCheckpointTest() throws IOException {
+        File leaseDir = Files.createTempDirectory("leases").toFile();
+        File testFile = File.createTempFile("purger-input", ".txt");
+        testFile.deleteOnExit();
+        Files.copy(TEST_FILE.toPath(), testFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Purger.getRemainderFile(testFile, Shard.ALL).deleteOnExit();
+        
+        final DeleteFileClient failingClient = new DeleteFileClient() {
+            @Override
+            public void deleteFile(String collectionID, String fileId, String pillarId, 
+                    ChecksumDataForFileTYPE checksumForPillar, ChecksumSpecTYPE checksumRequested,
+                    EventHandler eventHandler, String auditTrailInformation) {
+                AbstractOperationEvent event = new OperationFailedEvent(TEST_COLLECTION, "Failed", null);
+                event.setFileID(fileId);
+                eventHandler.handleEvent(event);
+            }
+        };
+        ShardCoordinator aborting = new ShardCoordinator(leaseDir, 1, 1, testFile, false, false);
+        try {
+            assertFalse(aborting.purgeShards(Shard.ALL, new ShardCoordinator.PurgerFactory() {
+                @Override
+                public Purger createPurger() {
+                    return new Purger(failingClient, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 1, 3600, 
+                            new AuditLog(), new CircuitBreaker(10, 0, 1, 1, 0));
+                }
+            }));
+        } finally {
+            aborting.close();
+        }
+        List<String> checkpoint = Files.readAllLines(new File(leaseDir, "shard-1-of-1.checkpoint.0").toPath(), 
+                StandardCharsets.UTF_8);
+        assertEquals(checkpoint.get(0), "#Lines\t1", "The aborted purge should have handled the first line");
+
+        final List<String> deletedFileIDs = new ArrayList<>();
+        final DeleteFileClient completingClient = new DeleteFileClient() {
+            @Override
+            public void deleteFile(String collectionID, String fileId, String pillarId, 
+                    ChecksumDataForFileTYPE checksumForPillar, ChecksumSpecTYPE checksumRequested,
+                    EventHandler eventHandler, String auditTrailInformation) {
+                deletedFileIDs.add(fileId);
+                AbstractOperationEvent event = new CompleteEvent(TEST_COLLECTION, null);
+                event.setFileID(fileId);
+                eventHandler.handleEvent(event);
+            }
+        };
+        ShardCoordinator resuming = new ShardCoordinator(leaseDir, 1, 1, testFile, false, false);
+        try {
+            assertTrue(resuming.purgeShards(Shard.ALL, new ShardCoordinator.PurgerFactory() {
+                @Override
+                public Purger createPurger() {
+                    return new Purger(completingClient, TEST_COLLECTION, TEST_PILLAR_ID, "delete message", 1, 3600);
+                }
+            }));
+            assertEquals(deletedFileIDs, Arrays.asList("testfile2"), 
+                    "Only the files after the checkpoint should be sent");
+            List<String> results = Files.readAllLines(resuming.getResultFile(Shard.ALL).toPath(), 
+                    StandardCharsets.UTF_8);
+            assertEquals(results, Arrays.asList(Purger.REPORT_HEADER, "testfile1\tabab\tFAILED\tUNKNOWN\tFailed"), 
+                    "The results of the previous holder should be reported");
+        } finally {
+            resuming.close();
+        }
+    }
+
+    private ShardCoordinator createCoordinator(File leaseDir, int shardCount, int leaseTimeout) throws IOException {
+        return new ShardCoordinator(leaseDir, shardCount, leaseTimeout, TEST_FILE, false, false);
+    }
+}